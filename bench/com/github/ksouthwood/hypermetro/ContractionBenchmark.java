@@ -0,0 +1,98 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares /fastest-route searches with and without a contraction hierarchy.
+ * <p>
+ * Answers the same random queries on a generated network with plain Dijkstra and with the hierarchy, and prints how
+ * long contracting the network took, the shortcuts it added and the time taken per query. Fails if the hierarchy finds
+ * a different route than Dijkstra, even an equally fast one, or one that doesn't follow the edges of the network.
+ * <pre>
+ * java -cp target/benchmarks.jar com.github.ksouthwood.hypermetro.ContractionBenchmark [STATIONS_PER_LINE [QUERIES]]
+ * </pre>
+ */
+public class ContractionBenchmark {
+    public static void main(String[] args) throws Exception {
+        int perLine = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        Path generated = Files.createTempDirectory("hypermetro-bench");
+        var  settings  = new NetworkGenerator.Settings(250, perLine, 0.0, 0.1, 1, 5, false, 42);
+        var  lines     = FileOperations.readJSONFile(
+                NetworkGenerator.generate(generated.resolve("generated.json"), settings).toString());
+        var  graph     = new MetroGraph(lines.values());
+
+        Random random = new Random(42);
+        int[]  starts = new int[queries];
+        int[]  ends   = new int[queries];
+        for (int query = 0; query < queries; query++) {
+            starts[query] = random.nextInt(graph.size());
+            ends[query] = random.nextInt(graph.size());
+        }
+
+        long start     = System.nanoTime();
+        var  hierarchy = new ContractionHierarchy(graph);
+        long prepare   = System.nanoTime() - start;
+
+        System.out.printf("%-12s %10s %14s %12s %12s%n", "Search", "stations", "prepare ms", "shortcuts", "us/query");
+        Route[] expected = run(graph, new RouteFinder(graph), starts, ends, "dijkstra", 0, 0);
+        Route[] actual   = run(graph, new RouteFinder(graph, null, null, hierarchy), starts, ends, "contraction",
+                               prepare, hierarchy.getShortcutCount());
+        for (int query = 0; query < queries; query++) {
+            int expectedTime = expected[query] == null ? -1 : expected[query].time();
+            int actualTime   = actual[query] == null ? -1 : check(actual[query]);
+            if (actualTime != expectedTime) {
+                throw new IllegalStateException("Query " + query + " took " + actualTime + " minutes with the " +
+                                                "hierarchy instead of " + expectedTime);
+            }
+            if (expected[query] != null && !expected[query].stations().equals(actual[query].stations())) {
+                throw new IllegalStateException("Query " + query + " took another route than Dijkstra");
+            }
+        }
+    }
+
+    private static Route[] run(final MetroGraph graph, final RouteFinder finder, final int[] starts, final int[] ends,
+                               final String name, final long prepareNanos, final int shortcuts) {
+        Route[] routes = new Route[starts.length];
+
+        // one untimed pass to warm up the JIT
+        for (int query = 0; query < starts.length; query++) {
+            finder.fastestRoute(graph.getStation(starts[query]), graph.getStation(ends[query]));
+        }
+
+        long start = System.nanoTime();
+        for (int query = 0; query < starts.length; query++) {
+            routes[query] = finder.fastestRoute(graph.getStation(starts[query]), graph.getStation(ends[query]));
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf(Locale.ROOT, "%-12s %10d %14.1f %12d %12.1f%n", name, graph.size(), prepareNanos / 1e6,
+                          shortcuts, elapsed / 1e3 / starts.length);
+        return routes;
+    }
+
+    /**
+     * Add up the travel times along a route, failing if two stations next to each other on it aren't neighbors.
+     */
+    private static int check(final Route route) {
+        int     time     = 0;
+        Station previous = null;
+        for (var station : route.stations()) {
+            if (previous != null) {
+                if (!previous.getNeighbors().contains(station)) {
+                    throw new IllegalStateException(station.getName() + " doesn't follow " + previous.getName());
+                }
+                time += RouteFinder.travelTime(previous, station);
+            }
+            previous = station;
+        }
+        if (time != route.time()) {
+            throw new IllegalStateException("Route takes " + time + " minutes, not " + route.time());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.ksouthwood.hypermetro;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the hot paths: loading a network, finding routes and parsing commands.
+ * <p>
+ * Loading is measured on every JSON file in {@code test/test_files} and on generated networks of 10,000 and 100,000
+ * stations, routing on Prague and the generated networks, with the route cache off so the searches themselves are
+ * measured. Build the benchmark jar with the {@code bench} profile and run it from the project root with the GC
+ * profiler for the allocation rate and bytes per operation:
+ * <pre>
+ * mvn -B -Pbench package -DskipTests
+ * java -jar target/benchmarks.jar HyperMetroBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-D" + RouteCache.SIZE_PROPERTY + "=0")
+public class HyperMetroBenchmark {
+    private static final int QUERIES = 256;    // station pairs cycled through by the routing benchmarks
+
+    private static final Map<String, NetworkGenerator.Settings> GENERATED = Map.of(
+            "generated_10k", new NetworkGenerator.Settings(100, 100, 0.0, 0.1, 1, 5, false, 42),
+            "generated_100k", new NetworkGenerator.Settings(250, 400, 0.0, 0.1, 1, 5, false, 42));
+
+    /**
+     * Path of a network file: a file of {@code test/test_files}, or a generated network written to a temporary file.
+     */
+    private static Path network(final String name) throws IOException {
+        var settings = GENERATED.get(name);
+        if (settings == null) {
+            return Path.of("test/test_files", name);
+        }
+        Path directory = Files.createTempDirectory("hypermetro-bench");
+        directory.toFile().deleteOnExit();
+        return NetworkGenerator.generate(directory.resolve(name + ".json"), settings);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Load {
+        @Param({"baltimore.json", "json_test.json", "lausanne.json", "prague_subway.json", "prague_w_time.json",
+                "samara.json", "stage_2_example.json", "stage_3_example.json", "stage_5_example.json",
+                "generated_10k", "generated_100k"})
+        public String network;
+
+        String file;
+
+        @Setup(Level.Trial)
+        public void generate() throws IOException {
+            file = network(network).toString();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Routes {
+        @Param({"prague_w_time.json", "generated_10k", "generated_100k"})
+        public String network;
+
+        Controller  controller;
+        Station[][] pairs;
+        int         next;
+
+        @Setup(Level.Trial)
+        public void load() throws IOException {
+            var lines = FileOperations.readJSONFile(network(network).toString());
+            controller = new Controller(lines, new CommandParser(new BufferedReader(new StringReader(""))));
+            pairs = randomPairs(lines, QUERIES);
+        }
+
+        Station[] nextPair() {
+            return pairs[next++ % QUERIES];
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Commands {
+        final String commands = """
+                /route "Linka C" Vysehrad "Linka B" "Namesti Republiky"
+                /fastest-route 'Piccadilly line' Ickenham 'Central line' 'North Acton'
+                /connect "New York" 'North Houston' Baltimore 'Richard "Dick" Plaza'
+                /append Hammersmith-and-City "Test station" 3
+                /output Hammersmith-and-City
+                """.repeat(20);
+        final int    count    = (int) commands.lines().count();
+    }
+
+    @Benchmark
+    public HashMap<String, MetroLine> readJSONFile(final Load load) {
+        return FileOperations.readJSONFile(load.file);
+    }
+
+    @Benchmark
+    public Route getRoute(final Routes routes) {
+        var pair = routes.nextPair();
+        return routes.controller.getRoute(pair[0], pair[1]);
+    }
+
+    @Benchmark
+    public Route getFastestRoute(final Routes routes) {
+        var pair = routes.nextPair();
+        return routes.controller.getFastestRoute(pair[0], pair[1]);
+    }
+
+    @Benchmark
+    public void parseCommands(final Commands commands, final Blackhole blackhole) {
+        var parser = new CommandParser(new BufferedReader(new StringReader(commands.commands)));
+        for (int command = 0; command < commands.count; command++) {
+            blackhole.consume(parser.getCommand());
+        }
+    }
+
+    /**
+     * Pick random pairs of stations with a fixed seed so every run asks for the same routes.
+     */
+    private static Station[][] randomPairs(final HashMap<String, MetroLine> lines, final int count) {
+        List<Station> stations = new ArrayList<>();
+        lines.keySet().stream().sorted().forEach(line -> stations.addAll(lines.get(line).getStations()));
+
+        Random      random = new Random(42);
+        Station[][] pairs  = new Station[count][];
+        for (int pair = 0; pair < count; pair++) {
+            pairs[pair] = new Station[]{stations.get(random.nextInt(stations.size())),
+                                        stations.get(random.nextInt(stations.size()))};
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+import javax.management.JMException;
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+/**
+ * Compares /fastest-route searches with and without landmarks.
+ * <p>
+ * Answers the same random queries on a generated network of 100,000 stations with plain Dijkstra and with A* using
+ * 4, 8 and 16 landmarks, and prints how long the landmarks took to compute, the stations settled and the time taken
+ * per query. Fails if any search with landmarks finds a slower route than Dijkstra. The stations settled are read from
+ * the nodes expanded counter of {@link Metrics}, which the benchmark turns on.
+ * <pre>
+ * java -cp target/benchmarks.jar com.github.ksouthwood.hypermetro.LandmarkBenchmark [QUERIES]
+ * </pre>
+ */
+public class LandmarkBenchmark {
+    public static void main(String[] args) throws Exception {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        System.setProperty(Metrics.ENABLED_PROPERTY, "true");
+
+        Path generated = Files.createTempDirectory("hypermetro-bench");
+        var  settings  = new NetworkGenerator.Settings(250, 400, 0.0, 0.1, 1, 5, false, 42);
+        var  lines     = FileOperations.readJSONFile(
+                NetworkGenerator.generate(generated.resolve("generated_100k.json"), settings).toString());
+        var  graph     = new MetroGraph(lines.values());
+
+        Random random = new Random(42);
+        int[]  starts = new int[queries];
+        int[]  ends   = new int[queries];
+        for (int query = 0; query < queries; query++) {
+            starts[query] = random.nextInt(graph.size());
+            ends[query] = random.nextInt(graph.size());
+        }
+
+        System.out.printf("%-12s %14s %14s %14s%n", "Landmarks", "prepare ms", "settled/query", "us/query");
+        int[] expected = run(graph, null, starts, ends, "none", 0);
+        for (int count : new int[]{4, 8, 16}) {
+            long      start     = System.nanoTime();
+            Landmarks landmarks = new Landmarks(graph, count);
+            long      prepare   = System.nanoTime() - start;
+            int[]     times     = run(graph, landmarks, starts, ends, String.valueOf(count), prepare);
+            for (int query = 0; query < queries; query++) {
+                if (times[query] != expected[query]) {
+                    throw new IllegalStateException("Query " + query + " took " + times[query] + " minutes with " +
+                                                    count + " landmarks instead of " + expected[query]);
+                }
+            }
+        }
+    }
+
+    private static int[] run(final MetroGraph graph, final Landmarks landmarks, final int[] starts, final int[] ends,
+                             final String name, final long prepareNanos) throws JMException {
+        var   finder = new RouteFinder(graph, landmarks);
+        int[] times  = new int[starts.length];
+
+        // one untimed pass to warm up the JIT
+        for (int query = 0; query < starts.length; query++) {
+            finder.fastestRoute(graph.getStation(starts[query]), graph.getStation(ends[query]));
+        }
+
+        var  metrics = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                                          new ObjectName(Metrics.OBJECT_NAME), MetricsMXBean.class);
+        long settled = metrics.getNodesExpanded();
+        long start   = System.nanoTime();
+        for (int query = 0; query < starts.length; query++) {
+            var route = finder.fastestRoute(graph.getStation(starts[query]), graph.getStation(ends[query]));
+            times[query] = route == null ? -1 : route.time();
+        }
+        long elapsed = System.nanoTime() - start;
+        settled = metrics.getNodesExpanded() - settled;
+
+        System.out.printf(Locale.ROOT, "%-12s %14.1f %14.1f %14.1f%n", name, prepareNanos / 1e6,
+                          (double) settled / starts.length, elapsed / 1e3 / starts.length);
+        return times;
+    }
+}
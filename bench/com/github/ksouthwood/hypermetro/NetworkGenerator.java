@@ -0,0 +1,224 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generator of synthetic metro networks in the HyperMetro JSON formats.
+ * <p>
+ * Networks are made of lines with the same number of stations each. In the array format (with next and previous
+ * stops) a station may branch off an earlier station of its line instead of following the previous one, so lines form
+ * trees; the numbered object format can only describe straight lines and ignores the branch probability. Stations
+ * become interchanges with a random station of another line, listing the transfer on both sides, and the travel time
+ * of every station is drawn uniformly from a range. The same settings and seed always produce the same file, and the
+ * file is streamed out so networks of a million stations don't need much heap.
+ * <pre>
+ * java -cp target/benchmarks.jar com.github.ksouthwood.hypermetro.NetworkGenerator FILE [LINES STATIONS BRANCH
+ *      INTERCHANGE MIN_TIME MAX_TIME FORMAT SEED]
+ * </pre>
+ */
+public class NetworkGenerator {
+    /**
+     * Settings of a generated network.
+     *
+     * @param lines
+     *         number of lines
+     * @param stationsPerLine
+     *         number of stations on each line
+     * @param branchProbability
+     *         chance that a station branches off a random earlier station of its line (array format only)
+     * @param interchangeDensity
+     *         chance that a station is an interchange with another line
+     * @param minTime
+     *         shortest travel time of a station
+     * @param maxTime
+     *         longest travel time of a station
+     * @param arrayFormat
+     *         true for the next/prev array format, false for the numbered object format
+     * @param seed
+     *         seed of the random generator
+     */
+    record Settings(int lines, int stationsPerLine, double branchProbability, double interchangeDensity,
+                    int minTime, int maxTime, boolean arrayFormat, long seed) {
+        int stationCount() {
+            return lines * stationsPerLine;
+        }
+    }
+
+    private static final int[] NONE = new int[0];
+
+    private final Settings settings;
+    private final int[]    prev;        // index of the previous station on the line, -1 for the first one
+    private final int[]    time;
+    private final int[][]  transfers;   // global indexes of the stations each station transfers to
+
+    NetworkGenerator(final Settings settings) {
+        this.settings = settings;
+        this.prev = new int[settings.stationCount()];
+        this.time = new int[settings.stationCount()];
+        this.transfers = new int[settings.stationCount()][];
+        generate(new Random(settings.seed()));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 9) {
+            System.out.println("Usage: NetworkGenerator FILE [LINES STATIONS BRANCH INTERCHANGE MIN_TIME MAX_TIME " +
+                               "object|array SEED]");
+            return;
+        }
+
+        var settings = args.length == 1 ? new Settings(10, 100, 0.0, 0.1, 1, 5, false, 42)
+                                         : new Settings(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                                                        Double.parseDouble(args[3]), Double.parseDouble(args[4]),
+                                                        Integer.parseInt(args[5]), Integer.parseInt(args[6]),
+                                                        args[7].equals("array"), Long.parseLong(args[8]));
+        new NetworkGenerator(settings).write(Path.of(args[0]));
+    }
+
+    /**
+     * Generate a network and write it to a file.
+     *
+     * @param file
+     *         file to write the network to
+     * @param settings
+     *         settings of the network
+     *
+     * @return the file written
+     */
+    static Path generate(final Path file, final Settings settings) throws IOException {
+        new NetworkGenerator(settings).write(file);
+        return file;
+    }
+
+    private void generate(final Random random) {
+        int perLine = settings.stationsPerLine();
+
+        for (int station = 0; station < settings.stationCount(); station++) {
+            int position = station % perLine;
+            if (position == 0) {
+                prev[station] = -1;
+            } else if (settings.arrayFormat() && position > 1 && random.nextDouble() < settings.branchProbability()) {
+                prev[station] = station - position + random.nextInt(position - 1);
+            } else {
+                prev[station] = station - 1;
+            }
+            time[station] = settings.minTime() + random.nextInt(settings.maxTime() - settings.minTime() + 1);
+        }
+
+        // interchanges as pairs of global station indexes
+        int[]     pairs     = new int[16];
+        int       pairCount = 0;
+        Set<Long> used      = new HashSet<>();   // (station, line) pairs that already have a transfer
+        if (settings.lines() > 1) {
+            for (int station = 0; station < settings.stationCount(); station++) {
+                if (random.nextDouble() >= settings.interchangeDensity()) {
+                    continue;
+                }
+                int line      = station / perLine;
+                int otherLine = (line + 1 + random.nextInt(settings.lines() - 1)) % settings.lines();
+                int other     = otherLine * perLine + random.nextInt(perLine);
+                // a station can only transfer to one station per line
+                if (used.add(pairKey(station, otherLine)) && used.add(pairKey(other, line))) {
+                    if (pairCount + 2 > pairs.length) {
+                        pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                    }
+                    pairs[pairCount++] = station;
+                    pairs[pairCount++] = other;
+                }
+            }
+        }
+
+        int[] count = new int[settings.stationCount()];
+        for (int index = 0; index < pairCount; index++) {
+            count[pairs[index]]++;
+        }
+        for (int station = 0; station < transfers.length; station++) {
+            transfers[station] = count[station] == 0 ? NONE : new int[count[station]];
+            count[station] = 0;
+        }
+        for (int index = 0; index < pairCount; index += 2) {
+            transfers[pairs[index]][count[pairs[index]]++] = pairs[index + 1];
+            transfers[pairs[index + 1]][count[pairs[index + 1]]++] = pairs[index];
+        }
+    }
+
+    private static long pairKey(final int station, final int line) {
+        return ((long) station << 32) | line;
+    }
+
+    private void write(final Path file) throws IOException {
+        int perLine = settings.stationsPerLine();
+
+        // next stops are the reverse of the previous stops
+        int[]   nextCount = new int[settings.stationCount()];
+        int[][] next      = new int[settings.stationCount()][];
+        for (int station : prev) {
+            if (station != -1) {
+                nextCount[station]++;
+            }
+        }
+        for (int station = 0; station < next.length; station++) {
+            next[station] = nextCount[station] == 0 ? NONE : new int[nextCount[station]];
+        }
+        Arrays.fill(nextCount, 0);
+        for (int station = 0; station < prev.length; station++) {
+            if (prev[station] != -1) {
+                next[prev[station]][nextCount[prev[station]]++] = station;
+            }
+        }
+
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("{\n");
+            for (int line = 0; line < settings.lines(); line++) {
+                out.write("  \"" + lineName(line) + "\": " + (settings.arrayFormat() ? "[" : "{") + "\n");
+                for (int position = 0; position < perLine; position++) {
+                    int station = line * perLine + position;
+                    out.write("    ");
+                    if (!settings.arrayFormat()) {
+                        out.write("\"" + (position + 1) + "\": ");
+                    }
+                    out.write("{\"name\": \"" + stationName(station) + "\"");
+                    if (settings.arrayFormat()) {
+                        out.write(", \"prev\": ");
+                        writeNames(out, prev[station] == -1 ? NONE : new int[]{prev[station]});
+                        out.write(", \"next\": ");
+                        writeNames(out, next[station]);
+                    }
+                    out.write(", \"transfer\": [");
+                    for (int transfer = 0; transfer < transfers[station].length; transfer++) {
+                        int other = transfers[station][transfer];
+                        out.write((transfer > 0 ? ", " : "") + "{\"line\": \"" + lineName(other / perLine) +
+                                  "\", \"station\": \"" + stationName(other) + "\"}");
+                    }
+                    out.write("], \"time\": " + time[station] + "}" + (position < perLine - 1 ? "," : "") + "\n");
+                }
+                out.write("  " + (settings.arrayFormat() ? "]" : "}") + (line < settings.lines() - 1 ? "," : "") +
+                          "\n");
+            }
+            out.write("}\n");
+        }
+    }
+
+    private void writeNames(final Writer out, final int[] stations) throws IOException {
+        out.write("[");
+        for (int index = 0; index < stations.length; index++) {
+            out.write((index > 0 ? ", " : "") + "\"" + stationName(stations[index]) + "\"");
+        }
+        out.write("]");
+    }
+
+    private static String lineName(final int line) {
+        return "Line " + line;
+    }
+
+    private String stationName(final int station) {
+        return "Station " + station / settings.stationsPerLine() + "-" + station % settings.stationsPerLine();
+    }
+}
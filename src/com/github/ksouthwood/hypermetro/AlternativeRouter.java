@@ -0,0 +1,322 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Finds the K fastest routes between two stations that never pass the same station twice, with Yen's algorithm.
+ * <p>
+ * The fastest route comes first. Every next route leaves one of the routes found so far at some station, the spur,
+ * having followed it up to there, and is the fastest way on to the end without going back through the stations before
+ * the spur or on along any route already found with the same beginning. Only the stations of the last route found
+ * from where it left the one before it are tried as spurs, as the stations before were already tried.
+ * <p>
+ * One search backwards from the end, the tree of fastest routes to the end, is shared by every spur search of a query:
+ * the travel time it found from a station to the end never overestimates the time left once stations and edges are
+ * ruled out, so the spur searches are A* searches that head straight for the end. The search stops once the tree
+ * reaches the start; stations it hasn't settled yet are at least as far from the end as the start is. Only the best
+ * routes still needed are kept as candidates, and spur searches give up once they can't beat the worst of them, so a
+ * query holds at most K routes and one set of search arrays, reused between queries on the same thread. At most
+ * {@value #MAX_ALTERNATIVES} routes are found per query.
+ */
+public class AlternativeRouter {
+    static final int MAX_ALTERNATIVES = 100;
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+    private static final int NONE     = -1;
+
+    private static final ThreadLocal<Search> scratch = ThreadLocal.withInitial(Search::new);
+
+    // fastest first, then the fewest stations, then by station ids so equal routes are the same candidate
+    private static final Comparator<Path> ORDER = Comparator.comparingInt(Path::time)
+                                                            .thenComparingInt(path -> path.stations.length)
+                                                            .thenComparing(Path::stations, Arrays::compare);
+
+    private final MetroGraph graph;
+
+    AlternativeRouter(final MetroGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Find the fastest routes between two stations.
+     *
+     * @param start
+     *         Station object the routes start at
+     * @param end
+     *         Station object the routes end at
+     * @param count
+     *         number of routes to find, at most {@value #MAX_ALTERNATIVES}
+     *
+     * @return the routes from the fastest on, fewer than asked for if there aren't as many, empty if there is none
+     */
+    List<Route> find(final Station start, final Station end, final int count) {
+        var routes = new ArrayList<Route>();
+        if (start == end) {
+            routes.add(new Route(new LinkedList<>(List.of(start)), 0));
+            return routes;
+        }
+
+        int    wanted = Math.min(count, MAX_ALTERNATIVES);
+        Search search = scratch.get().prepare(graph.size());
+        var    found  = new ArrayList<Path>();
+        var    ahead  = new TreeSet<>(ORDER);   // candidates for the next route
+        int    source = graph.id(start);
+        int    target = graph.id(end);
+        if (search.grow(graph, source, target)) {
+            found.add(search.treePath(source, target));
+        }
+        while (!found.isEmpty() && found.size() < wanted) {
+            Path last   = found.get(found.size() - 1);
+            int  needed = wanted - found.size();
+            for (int spur = last.deviation; spur < last.stations.length - 1; spur++) {
+                search.block(last, spur, found);
+                int  bound   = ahead.size() < needed ? INFINITY : ahead.last().time() - last.times[spur];
+                Path onwards = search.spur(graph, last, spur, target, bound);
+                if (onwards != null && ahead.add(onwards) && ahead.size() > needed) {
+                    ahead.pollLast();
+                }
+            }
+            if (ahead.isEmpty()) {
+                break;
+            }
+            found.add(ahead.pollFirst());
+        }
+        Metrics.search(search.expanded, search.peak, found.size());
+        search.reset();
+
+        for (var path : found) {
+            var stations = new LinkedList<Station>();
+            for (int id : path.stations) {
+                stations.add(graph.getStation(id));
+            }
+            routes.add(new Route(stations, path.time()));
+        }
+        return routes;
+    }
+
+    /**
+     * A route as station ids.
+     *
+     * @param stations
+     *         ids of the stations passed, in travel order
+     * @param times
+     *         minutes from the start to each station
+     * @param deviation
+     *         index of the station the route leaves the route it was found from, 0 for the fastest route
+     */
+    private record Path(int[] stations, int[] times, int deviation) {
+        int time() {
+            return times[times.length - 1];
+        }
+    }
+
+    /**
+     * Scratch space of a query, kept per thread. Only what a query touched is reset after it.
+     */
+    private static final class Search {
+        private int[]          toEnd      = new int[0];    // time to the end along the tree, INFINITY if not reached
+        private int[]          next       = new int[0];    // next station towards the end along the tree
+        private boolean[]      settled    = new boolean[0];
+        private int[]          time       = new int[0];    // time from the spur, INFINITY if not reached
+        private int[]          parent     = new int[0];
+        private int[]          blocked    = new int[0];    // stations ruled out by the current spur
+        private int[]          cut        = new int[0];    // stations the spur may not go on to
+        private int[]          treeNodes  = new int[16];   // stations with a time to the end, to reset them
+        private int            treeCount;
+        private int[]          spurNodes  = new int[16];   // stations with a time from the spur
+        private int            spurCount;
+        private IndexedMinHeap queue      = new IndexedMinHeap(0);
+        private int            radius;                      // time to the end of every station not settled, at least
+        private int            stamp;                       // marks blocked and cut stations of the current spur
+        private int            capacity;
+        private long           expanded;
+        private int            peak;
+
+        Search prepare(final int size) {
+            if (capacity < size) {
+                capacity = size;
+                toEnd = new int[size];
+                next = new int[size];
+                settled = new boolean[size];
+                time = new int[size];
+                parent = new int[size];
+                blocked = new int[size];
+                cut = new int[size];
+                Arrays.fill(toEnd, INFINITY);
+                Arrays.fill(time, INFINITY);
+                queue = new IndexedMinHeap(size);
+                stamp = 0;
+            }
+            return this;
+        }
+
+        /**
+         * Grow the tree of fastest routes to the end backwards until it settles the start.
+         *
+         * @return false if the start can't reach the end
+         */
+        boolean grow(final MetroGraph graph, final int start, final int end) {
+            toEnd[end] = 0;
+            next[end] = NONE;
+            treeNodes = append(treeNodes, treeCount++, end);
+            queue.push(end, 0);
+            while (!queue.isEmpty()) {
+                int node = queue.pop();
+                settled[node] = true;
+                radius = toEnd[node];
+                if (node == start) {
+                    break;
+                }
+                expanded++;
+                for (int edge = graph.firstInEdge(node); edge < graph.endInEdge(node); edge++) {
+                    int id      = graph.source(edge);
+                    int arrival = toEnd[node] + graph.inWeight(edge);
+                    if (!settled[id] && arrival < toEnd[id]) {
+                        if (toEnd[id] == INFINITY) {
+                            treeNodes = append(treeNodes, treeCount++, id);
+                        }
+                        toEnd[id] = arrival;
+                        next[id] = node;
+                        queue.push(id, arrival);
+                        if (Metrics.ENABLED) {
+                            peak = Math.max(peak, queue.size());
+                        }
+                    }
+                }
+            }
+            while (!queue.isEmpty()) {
+                queue.pop();
+            }
+            return settled[start];
+        }
+
+        /**
+         * Follow the tree from the start to the end.
+         */
+        Path treePath(final int start, final int end) {
+            int length = 1;
+            for (int id = start; id != end; id = next[id]) {
+                length++;
+            }
+            int[] stations = new int[length];
+            int[] times    = new int[length];
+            int   id       = start;
+            for (int index = 0; index < length; index++, id = next[id]) {
+                stations[index] = id;
+                times[index] = toEnd[start] - toEnd[id];
+            }
+            return new Path(stations, times, 0);
+        }
+
+        /**
+         * Rule out the stations before a spur and, from the spur, the station after it on every route found so far
+         * that begins the same way.
+         */
+        void block(final Path last, final int spur, final List<Path> found) {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(blocked, 0);
+                Arrays.fill(cut, 0);
+                stamp = 1;
+            }
+            for (int index = 0; index < spur; index++) {
+                blocked[last.stations[index]] = stamp;
+            }
+            for (var path : found) {
+                if (path.stations.length > spur + 1 &&
+                    Arrays.equals(path.stations, 0, spur + 1, last.stations, 0, spur + 1)) {
+                    cut[path.stations[spur + 1]] = stamp;
+                }
+            }
+        }
+
+        /**
+         * Find the fastest way from a spur to the end that isn't ruled out, with A* guided by the tree.
+         *
+         * @param bound
+         *         give up on ways from the spur that take longer than this
+         *
+         * @return the route through the spur, or null if there is none within the bound
+         */
+        Path spur(final MetroGraph graph, final Path last, final int spur, final int end, final int bound) {
+            int from = last.stations[spur];
+            reach(from, 0, NONE);
+            int found = NONE;
+            while (!queue.isEmpty()) {
+                int node = queue.pop();
+                if (node == end) {
+                    found = node;
+                    break;
+                }
+                expanded++;
+                for (int edge = graph.firstEdge(node); edge < graph.endEdge(node); edge++) {
+                    int id      = graph.target(edge);
+                    int arrival = time[node] + graph.weight(edge);
+                    if (blocked[id] == stamp || node == from && cut[id] == stamp || arrival >= time[id]) {
+                        continue;
+                    }
+                    long estimate = (long) arrival + (settled[id] ? toEnd[id] : radius);
+                    if (estimate <= bound) {
+                        reach(id, arrival, node);
+                        if (Metrics.ENABLED) {
+                            peak = Math.max(peak, queue.size());
+                        }
+                    }
+                }
+            }
+
+            Path path = null;
+            if (found != NONE) {
+                int length = spur + 1;
+                for (int id = end; id != from; id = parent[id]) {
+                    length++;
+                }
+                int[] stations = Arrays.copyOf(last.stations, length);
+                int[] times    = Arrays.copyOf(last.times, length);
+                int   index    = length - 1;
+                for (int id = end; id != from; id = parent[id], index--) {
+                    stations[index] = id;
+                    times[index] = last.times[spur] + time[id];
+                }
+                path = new Path(stations, times, spur);
+            }
+            while (!queue.isEmpty()) {
+                queue.pop();
+            }
+            for (int index = 0; index < spurCount; index++) {
+                time[spurNodes[index]] = INFINITY;
+            }
+            spurCount = 0;
+            return path;
+        }
+
+        private void reach(final int id, final int arrival, final int from) {
+            if (time[id] == INFINITY) {
+                spurNodes = append(spurNodes, spurCount++, id);
+            }
+            time[id] = arrival;
+            parent[id] = from;
+            queue.push(id, arrival + (settled[id] ? toEnd[id] : radius));
+        }
+
+        void reset() {
+            for (int index = 0; index < treeCount; index++) {
+                toEnd[treeNodes[index]] = INFINITY;
+                settled[treeNodes[index]] = false;
+            }
+            treeCount = 0;
+            expanded = 0;
+            peak = 0;
+        }
+
+        private static int[] append(final int[] list, final int count, final int value) {
+            int[] grown = count == list.length ? Arrays.copyOf(list, count * 2) : list;
+            grown[count] = value;
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a file of commands against a network and writes all the output to a file.
+ * <p>
+ * Route commands only read the network, so they are answered in parallel by a pool of workers, each searching the
+ * snapshot of the network taken when it was read. Other commands run straight away on the reading thread; a change
+ * only goes into the snapshots of the queries after it, so there is no need to wait for the queries before it. The
+ * output is written in the order of the commands, and is the same as running them one at a time.
+ */
+public class BatchRunner {
+    static final int WINDOW = 4096;   // answers waiting to be written before we wait for the oldest
+
+    private final HashMap<String, MetroLine> metroLines;
+    private final ContractionHierarchy.Saved hierarchy;   // loaded with the network, null if there is none
+    private final int                        threads;
+
+    BatchRunner(final HashMap<String, MetroLine> lines) {
+        this(lines, null);
+    }
+
+    BatchRunner(final HashMap<String, MetroLine> lines, final ContractionHierarchy.Saved hierarchy) {
+        this(lines, hierarchy, Runtime.getRuntime().availableProcessors());
+    }
+
+    BatchRunner(final HashMap<String, MetroLine> lines, final int threads) {
+        this(lines, null, threads);
+    }
+
+    BatchRunner(final HashMap<String, MetroLine> lines, final ContractionHierarchy.Saved hierarchy,
+                final int threads) {
+        this.metroLines = lines;
+        this.hierarchy = hierarchy;
+        this.threads = threads;
+    }
+
+    /**
+     * Run every command in a file, stopping at /exit or the end of the file.
+     *
+     * @param queries
+     *         file of commands, one per line
+     * @param output
+     *         file to write the output to
+     *
+     * @throws IOException
+     *         if a file can't be read or written
+     */
+    void run(final Path queries, final Path output) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try (BufferedReader reader = Files.newBufferedReader(queries);
+             BufferedWriter writer = Files.newBufferedWriter(output)) {
+            // messages from the parser and the output of the sequential commands
+            var messages   = new OutputSink();
+            var parser     = new CommandParser(reader, messages);
+            var controller = new Controller(metroLines, hierarchy, parser, messages);
+
+            Deque<Future<String>> pending = new ArrayDeque<>();
+            boolean               running = true;
+
+            while (running) {
+                var    command = parser.getCommand();
+                String before  = messages.take();
+
+                var name = command.get(0);
+                if (name.equals("/route") || name.equals("/fastest-route") || name.equals("/pareto-route") ||
+                    name.equals("/alternatives")) {
+                    var network = controller.publish();
+                    pending.add(workers.submit(() -> before + answer(controller, command, network)));
+                } else {
+                    running = controller.execute(command);
+                    pending.add(CompletableFuture.completedFuture(before + messages.take()));
+                }
+                while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > WINDOW)) {
+                    writer.write(result(pending.remove()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                writer.write(result(pending.remove()));
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static String answer(final Controller controller, final List<String> command,
+                                 final NetworkSnapshot network) {
+        long started = Metrics.start();
+        var  out     = new OutputSink();
+        controller.answerRouteQuery(command, out, network);
+        Metrics.time(command.get(0), started);
+        return out.take();
+    }
+
+    private static String result(final Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a route", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
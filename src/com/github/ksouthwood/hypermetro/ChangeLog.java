@@ -0,0 +1,115 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log of the changes made to the topology of the network.
+ * <p>
+ * Every command that changes the network records what it did as add-node, remove-node and add-edge changes. Indexes
+ * derived from the network, like the MetroGraph, remember the version they were built for and patch themselves with
+ * the changes since then instead of being rebuilt, unless there are more than {@link #rebuildThreshold()} of them.
+ * Travel time tables, like landmarks and the all-pairs matrix, can only be patched while links are added, see
+ * {@link #patchable(List)}. The version counts every change ever recorded, so it also tells caches when the topology changed.
+ */
+public class ChangeLog {
+    static final String THRESHOLD_PROPERTY = "hypermetro.graph.rebuildThreshold";
+    static final int    DEFAULT_THRESHOLD  = 256;
+
+    enum Kind {
+        ADD_NODE,       // station is new to the network
+        REMOVE_NODE,    // station was taken off its line
+        ADD_EDGE        // station now links to other
+    }
+
+    /**
+     * A single change to the network.
+     *
+     * @param kind
+     *         what changed
+     * @param station
+     *         the station that was added or removed, or that gained a link
+     * @param other
+     *         the station linked to for ADD_EDGE, null otherwise
+     */
+    record Change(Kind kind, Station station, Station other) {
+    }
+
+    private final List<Change> changes = new ArrayList<>();
+    private       long         base;    // version before the first change still held
+
+    void addNode(final Station station) {
+        changes.add(new Change(Kind.ADD_NODE, station, null));
+    }
+
+    void removeNode(final Station station) {
+        changes.add(new Change(Kind.REMOVE_NODE, station, null));
+    }
+
+    void addEdge(final Station station, final Station other) {
+        changes.add(new Change(Kind.ADD_EDGE, station, other));
+    }
+
+    /**
+     * Current version of the topology.
+     *
+     * @return the number of changes recorded so far
+     */
+    long getVersion() {
+        return base + changes.size();
+    }
+
+    /**
+     * Changes made since an earlier version.
+     *
+     * @param version
+     *         the version an index was built for
+     *
+     * @return the changes in the order they were made, or null if they are no longer held
+     */
+    List<Change> since(final long version) {
+        if (version < base || version > getVersion()) {
+            return null;
+        }
+        return changes.subList((int) (version - base), changes.size());
+    }
+
+    /**
+     * Forget the changes up to a version, once every index has caught up with it.
+     *
+     * @param version
+     *         the oldest version still needed
+     */
+    void trim(final long version) {
+        int count = (int) Math.min(Math.max(version - base, 0), changes.size());
+        changes.subList(0, count).clear();
+        base += count;
+    }
+
+    /**
+     * Check if travel time tables can be patched with a list of changes rather than rebuilt.
+     * <p>
+     * Patching only ever lowers travel times, which follows added stations and links but not removed stations, as
+     * routes through them get slower or disappear. A removal therefore needs a rebuild, like more changes than the
+     * rebuild threshold do.
+     *
+     * @param changes
+     *         the changes since the tables were built, null if they are no longer held
+     *
+     * @return true if the tables can be patched
+     */
+    static boolean patchable(final List<Change> changes) {
+        return changes != null && changes.size() <= rebuildThreshold() &&
+               changes.stream().noneMatch(change -> change.kind() == Kind.REMOVE_NODE);
+    }
+
+    /**
+     * Number of changes above which a full rebuild is cheaper than patching, from the {@value #THRESHOLD_PROPERTY}
+     * system property.
+     *
+     * @return the rebuild threshold
+     */
+    static int rebuildThreshold() {
+        return Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+    }
+}
@@ -6,18 +6,28 @@ import java.util.*;
 
 public class CommandParser {
     private final BufferedReader reader;
+    private final OutputSink     out;
 
     private final List<String> validCommands = List.of("/append", "/add-head", "/remove", "/output", "/exit",
-                                                       "/connect", "/route", "/fastest-route");
+                                                       "/connect", "/route", "/fastest-route", "/export",
+                                                       "/stats", "/time", "/pareto-route",
+                                                       "/alternatives");
+    private final String       validCommandList = validCommands.toString();
 
     public CommandParser(BufferedReader reader) {
+        this(reader, new OutputSink(System.out));
+    }
+
+    public CommandParser(BufferedReader reader, OutputSink out) {
         this.reader = reader;
+        this.out = out;
     }
 
     /**
      * Read a line and parse it into command tokens.
      * <p>
-     * Reads a line from the reader, then has it parsed into tokens. Will only return a valid command.
+     * Reads a line from the reader, then has it parsed into tokens. Will only return a valid command; once the reader
+     * runs out of lines that is /exit.
      *
      * @return Valid command as a list of strings.
      */
@@ -27,11 +37,15 @@ public class CommandParser {
         while (!validCommands.contains(command.get(0))) {
             try {
                 var input = reader.readLine();
-                if (input != null && !input.isEmpty()) {
+                if (input == null) {
+                    return List.of("/exit");
+                }
+                if (!input.isEmpty()) {
                     command = parseString(input);
                     if (!validCommands.contains(command.get(0))) {
-                        System.out.printf("Invalid command: %s%n", command.get(0));
-                        System.out.printf("Valid commands are: %s%n", validCommands);
+                        out.print("Invalid command: ").println(command.get(0));
+                        out.print("Valid commands are: ").println(validCommandList);
+                        out.flush();
                     }
                 }
             } catch (IOException e) {
@@ -0,0 +1,987 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+/**
+ * Contraction hierarchy of a MetroGraph, for /fastest-route on networks too big to search at every query.
+ * <p>
+ * Stations are contracted from the least important up: a contracted station is taken out of the network, and for
+ * every pair of its neighbors whose fastest route went through it a shortcut with the time of that route is added
+ * between them. The order of contraction ranks the stations, and the fastest route between any two stations can then
+ * be found only going up in rank from the start and down in rank to the end. A query searches forward from the start
+ * and backwards from the end along edges to higher ranks, settling a few hundred stations where Dijkstra would settle
+ * most of the network. Shortcuts remember the station they skip, so a route is unpacked back into every station passed
+ * on the way.
+ * <p>
+ * Where several routes are equally fast, the route is rebuilt the way Dijkstra would have found it: Dijkstra settles
+ * stations by time and then by id, and reaches each station from the first settled station that gets it there
+ * soonest, so walking back from the end it always came from the neighbor with the lowest time from the start, then
+ * the lowest id, of those on a fastest route. The times of the stations on the unpacked route are known; those of
+ * other neighbors are worked out from the stations ranked above them, up to the ones the search from the start
+ * settled. That only holds when every link takes some time, so the hierarchy isn't used for networks where one takes
+ * none.
+ * <p>
+ * Stations are contracted in rounds. Each round takes every station that ranks below all of its neighbors by how many
+ * shortcuts it would add, finds their shortcuts on all the cores at once and then adds them. Interchanges between
+ * far apart lines make the stations left over ever more connected, until contracting one adds more shortcuts than it
+ * saves searching, so once they average {@value #CORE_DEGREE} edges each they are left as a core of equal rank that
+ * queries search like Dijkstra does.
+ * <p>
+ * The hierarchy is only built when the {@value #ENABLED_PROPERTY} system property is true, and again for every version
+ * of the network, so it's meant for networks that are queried far more often than they change. Even then it's left
+ * out for a network with a link that takes no time, which includes every network loaded without station times, and
+ * /fastest-route searches the whole graph; a message on standard error says so the first time it happens. /export
+ * saves the hierarchy in the snapshot file, with the rank of every station, and loading the snapshot takes it from
+ * there instead of contracting the network again.
+ */
+public class ContractionHierarchy {
+    static final String ENABLED_PROPERTY = "hypermetro.contraction";
+    static final int    FORMAT           = 1;   // version of the layout write() saves the hierarchy in
+
+    private static final int INFINITY       = Integer.MAX_VALUE;
+    private static final int NONE           = -1;    // middle station of an edge that isn't a shortcut
+    private static final int CORE_DEGREE    = 16;    // mean edges per station at which contraction stops
+    private static final int WITNESS_LIMIT  = 500;   // stations a witness search settles before giving up
+    private static final int ESTIMATE_LIMIT = 50;    // the same when only counting shortcuts for a priority
+
+    // scratch space of the queries, shared by every hierarchy searched on the same thread
+    private static final ThreadLocal<Search> forwardSearches  = ThreadLocal.withInitial(Search::new);
+    private static final ThreadLocal<Search> backwardSearches = ThreadLocal.withInitial(Search::new);
+    // and of the witness searches while contracting, kept apart so neither can clobber the other's state
+    private static final ThreadLocal<Search> witnessSearches  = ThreadLocal.withInitial(Search::new);
+
+    private static final AtomicBoolean reportedFreeLinks = new AtomicBoolean();
+
+    private final MetroGraph graph;
+    private final int[]      ranks;         // round each station was contracted in, the core ranking highest
+    private final int        shortcuts;
+    private final int[]      upOffsets;     // edges to higher ranks leaving station id: upOffsets[id] to [id + 1]
+    private final int[]      upTargets;
+    private final int[]      upWeights;
+    private final int[]      upMiddles;     // station a shortcut skips, NONE for an edge of the graph
+    private final int[]      downOffsets;   // edges from higher ranks arriving at station id, the same way
+    private final int[]      downSources;
+    private final int[]      downWeights;
+    private final int[]      downMiddles;
+
+    /**
+     * Contract every station of a network.
+     *
+     * @param graph
+     *         the network to build the hierarchy of
+     */
+    ContractionHierarchy(final MetroGraph graph) {
+        this(graph, new Contraction(graph).run());
+    }
+
+    private ContractionHierarchy(final MetroGraph graph, final Contraction contraction) {
+        this(graph, contraction.ranks, contraction.shortcuts, contraction.up, contraction.down);
+    }
+
+    /**
+     * Take a hierarchy from the edges each station had when it was contracted.
+     *
+     * @param graph
+     *         the network the hierarchy is of
+     * @param ranks
+     *         the rank of each station
+     * @param shortcuts
+     *         number of shortcuts added while contracting the network
+     * @param up
+     *         edges of each station to higher ranks, three ints each: target, travel time and middle station
+     * @param down
+     *         edges arriving at each station from higher ranks, the same way with the source first
+     */
+    private ContractionHierarchy(final MetroGraph graph, final int[] ranks, final int shortcuts, final int[][] up,
+                                 final int[][] down) {
+        this.graph = graph;
+        this.ranks = ranks;
+        this.shortcuts = shortcuts;
+
+        upOffsets = offsets(up);
+        upTargets = new int[upOffsets[graph.size()]];
+        upWeights = new int[upTargets.length];
+        upMiddles = new int[upTargets.length];
+        unpackEdges(up, upOffsets, upTargets, upWeights, upMiddles);
+
+        downOffsets = offsets(down);
+        downSources = new int[downOffsets[graph.size()]];
+        downWeights = new int[downSources.length];
+        downMiddles = new int[downSources.length];
+        unpackEdges(down, downOffsets, downSources, downWeights, downMiddles);
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Build the hierarchy of a network if contraction is on.
+     *
+     * @param graph
+     *         the network to build the hierarchy of
+     *
+     * @return the hierarchy or null if we search without one
+     */
+    static ContractionHierarchy build(final MetroGraph graph) {
+        return build(graph, null);
+    }
+
+    /**
+     * Build the hierarchy of a network if contraction is on, taking the one saved with it in a snapshot file when
+     * there is one that fits.
+     *
+     * @param graph
+     *         the network to build the hierarchy of
+     * @param saved
+     *         hierarchy read from the snapshot file the network was loaded from, null to contract the network
+     *
+     * @return the hierarchy or null if we search without one
+     */
+    static ContractionHierarchy build(final MetroGraph graph, final Saved saved) {
+        if (!isEnabled()) {
+            return null;
+        }
+        if (hasFreeLinks(graph)) {
+            if (!reportedFreeLinks.getAndSet(true)) {
+                System.err.println("A link takes no time, /fastest-route searches without the contraction hierarchy.");
+            }
+            return null;
+        }
+        var loaded = saved == null ? null : saved.bind(graph);
+        return loaded != null ? loaded : new ContractionHierarchy(graph);
+    }
+
+    /**
+     * Check for links that take no time, where Dijkstra's choice between equally fast routes depends on more than the
+     * times and ids of the stations on them.
+     */
+    private static boolean hasFreeLinks(final MetroGraph graph) {
+        for (int id = 0; id < graph.size(); id++) {
+            for (int edge = graph.firstEdge(id); edge < graph.endEdge(id); edge++) {
+                if (graph.weight(edge) == 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of shortcuts added while contracting the network.
+     *
+     * @return the shortcut count
+     */
+    int getShortcutCount() {
+        return shortcuts;
+    }
+
+    /**
+     * Find the fastest route between two stations.
+     *
+     * @param start
+     *         Station object the route starts at
+     * @param end
+     *         Station object the route ends at
+     *
+     * @return the fastest route with its total time or null if there is no route
+     */
+    Route fastestRoute(final Station start, final Station end) {
+        int    size     = graph.size();
+        int    source   = graph.id(start);
+        int    target   = graph.id(end);
+        Search forward  = forwardSearches.get().prepare(size, true);
+        Search backward = backwardSearches.get().prepare(size, true);
+        int    best     = start == end ? 0 : INFINITY;
+        int    meet     = start == end ? source : NONE;
+        int    peak     = 2;
+
+        forward.reach(source, 0, NONE, NONE);
+        backward.reach(target, 0, NONE, NONE);
+        // neither search can improve on the best route once the next station it would settle is already slower
+        while (true) {
+            boolean forwards  = forward.next() < best;
+            boolean backwards = backward.next() < best;
+            if (!forwards && !backwards) {
+                break;
+            }
+            if (Metrics.ENABLED) {
+                peak = Math.max(peak, forward.queue.size() + backward.queue.size());
+            }
+            if (forwards && (!backwards || forward.next() <= backward.next())) {
+                int node = forward.settle();
+                for (int edge = upOffsets[node]; edge < upOffsets[node + 1]; edge++) {
+                    int id      = upTargets[edge];
+                    int arrival = forward.time[node] + upWeights[edge];
+                    if (arrival < forward.time[id]) {
+                        forward.reach(id, arrival, node, edge);
+                        if (backward.time[id] != INFINITY && arrival + backward.time[id] < best) {
+                            best = arrival + backward.time[id];
+                            meet = id;
+                        }
+                    }
+                }
+            } else {
+                int node = backward.settle();
+                for (int edge = downOffsets[node]; edge < downOffsets[node + 1]; edge++) {
+                    int id      = downSources[edge];
+                    int arrival = backward.time[node] + downWeights[edge];
+                    if (arrival < backward.time[id]) {
+                        backward.reach(id, arrival, node, edge);
+                        if (forward.time[id] != INFINITY && arrival + forward.time[id] < best) {
+                            best = arrival + forward.time[id];
+                            meet = id;
+                        }
+                    }
+                }
+            }
+        }
+
+        LinkedList<Station> route = null;
+        if (meet != NONE) {
+            route = new LinkedList<>();
+            route.add(graph.getStation(meet));
+            for (int node = meet; node != source; node = forward.parent[node]) {
+                int edge = forward.edge[node];
+                unpack(forward.parent[node], node, upMiddles[edge], route, true);
+            }
+            for (int node = meet; node != target; node = backward.parent[node]) {
+                int edge = backward.edge[node];
+                unpack(node, backward.parent[node], downMiddles[edge], route, false);
+            }
+            backward.reset();
+            route = dijkstraRoute(route, best, forward, backward);
+        }
+        Metrics.search(forward.settled + backward.settled, peak, meet != NONE ? 1 : 0);
+        forward.reset();
+        backward.reset();
+        return route == null ? null : new Route(route, best);
+    }
+
+    /**
+     * Walk back from the end of a fastest route to its start the way Dijkstra's parents would lead.
+     *
+     * @param found
+     *         a fastest route, as unpacked from the hierarchy
+     * @param time
+     *         the time it takes
+     * @param forward
+     *         the search from the start, settled up to that time here so its times are final
+     * @param known
+     *         an empty search to keep the times of other stations in
+     *
+     * @return the route Dijkstra would have found
+     */
+    private LinkedList<Station> dijkstraRoute(final LinkedList<Station> found, final int time, final Search forward,
+                                              final Search known) {
+        // the times from the start of the stations on the route found are known without working them out
+        int[]   ids      = new int[found.size()];
+        int[]   times    = new int[found.size()];
+        int     index    = 0;
+        Station previous = null;
+        for (var station : found) {
+            ids[index] = graph.id(station);
+            times[index] = previous == null ? 0 : times[index - 1] + graph.linkTime(ids[index - 1], ids[index]);
+            previous = station;
+            index++;
+        }
+        while (forward.next() <= time) {
+            int node = forward.settle();
+            for (int edge = upOffsets[node]; edge < upOffsets[node + 1]; edge++) {
+                int arrival = forward.time[node] + upWeights[edge];
+                if (arrival < forward.time[upTargets[edge]]) {
+                    forward.reach(upTargets[edge], arrival, node, edge);
+                }
+            }
+        }
+
+        var route   = new LinkedList<Station>();
+        int start   = ids[0];
+        int node    = ids[ids.length - 1];
+        int arrival = time;
+        route.add(graph.getStation(node));
+        while (node != start) {
+            int from     = NONE;
+            int fromTime = INFINITY;
+            for (int edge = graph.firstInEdge(node); edge < graph.endInEdge(node); edge++) {
+                int id     = graph.source(edge);
+                int before = arrival - graph.inWeight(edge);
+                if (before >= 0 && precedes(before, id, fromTime, from) && timeOf(id, ids, times) == before) {
+                    from = id;
+                    fromTime = before;
+                }
+            }
+            // stations off the route found are only worked out when they would come before the best one so far
+            for (int edge = graph.firstInEdge(node); edge < graph.endInEdge(node); edge++) {
+                int id     = graph.source(edge);
+                int before = arrival - graph.inWeight(edge);
+                if (before >= 0 && precedes(before, id, fromTime, from) && timeOf(id, ids, times) == NONE &&
+                    timeFrom(forward, known, id, time + 1) == before) {
+                    from = id;
+                    fromTime = before;
+                }
+            }
+            node = from;
+            arrival = fromTime;
+            route.addFirst(graph.getStation(node));
+        }
+        return route;
+    }
+
+    private static boolean precedes(final int time, final int id, final int otherTime, final int other) {
+        return time < otherTime || time == otherTime && id < other;
+    }
+
+    private static int timeOf(final int id, final int[] ids, final int[] times) {
+        for (int index = 0; index < ids.length; index++) {
+            if (ids[index] == id) {
+                return times[index];
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Work out the time of the fastest route from the start to a station.
+     * <p>
+     * The last edge of the fastest route, taken up and down the hierarchy, either arrives from a station ranked higher
+     * with an edge down to it, or is the last of the forward search, so the station's time is the lower of its time in
+     * the forward search and those of the stations ranked above it plus their edge down. Those are worked out the same
+     * way up the ranks, each only once per query, up to the core or the top of the hierarchy.
+     *
+     * @param forward
+     *         the search from the start, settled up to at least the limit
+     * @param known
+     *         times already worked out in this query, INFINITY where not yet
+     * @param id
+     *         the station to work out the time of
+     * @param limit
+     *         time given to every station that takes longer
+     *
+     * @return the time of the fastest route to the station, or the limit
+     */
+    private int timeFrom(final Search forward, final Search known, final int id, final int limit) {
+        int[] stack = known.stack;
+        int   depth = 0;
+        stack[depth++] = id;
+        while (depth > 0) {
+            int     node  = stack[depth - 1];
+            boolean ready = true;
+            for (int edge = downOffsets[node]; edge < downOffsets[node + 1]; edge++) {
+                int source = downSources[edge];
+                if (ranks[source] > ranks[node] && known.time[source] == INFINITY) {
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                        known.stack = stack;
+                    }
+                    stack[depth++] = source;
+                    ready = false;
+                }
+            }
+            if (ready) {
+                depth--;
+                if (known.time[node] == INFINITY) {
+                    int time = Math.min(forward.time[node], limit);
+                    for (int edge = downOffsets[node]; edge < downOffsets[node + 1]; edge++) {
+                        if (ranks[downSources[edge]] > ranks[node]) {
+                            time = Math.min(time, known.time[downSources[edge]] + downWeights[edge]);
+                        }
+                    }
+                    known.record(node, time);
+                }
+            }
+        }
+        return known.time[id];
+    }
+
+    /**
+     * Add the stations an edge passes to a route, replacing each shortcut by the two edges it skips.
+     *
+     * @param from
+     *         station the edge leaves from
+     * @param to
+     *         station the edge arrives at
+     * @param middle
+     *         station the shortcut skips, NONE for an edge of the graph
+     * @param route
+     *         the route to add the stations to
+     * @param before
+     *         true to add them before the first station of the route, which is {@code to}, false to add them after the
+     *         last one, which is {@code from}
+     */
+    private void unpack(final int from, final int to, final int middle, final LinkedList<Station> route,
+                        final boolean before) {
+        if (middle == NONE) {
+            if (before) {
+                route.addFirst(graph.getStation(from));
+            } else {
+                route.addLast(graph.getStation(to));
+            }
+            return;
+        }
+
+        // the middle station was contracted first, so both halves are edges to its higher ranked neighbors
+        int down = find(downOffsets, downSources, middle, from);
+        int up   = find(upOffsets, upTargets, middle, to);
+        if (before) {
+            unpack(middle, to, upMiddles[up], route, true);
+            unpack(from, middle, downMiddles[down], route, true);
+        } else {
+            unpack(from, middle, downMiddles[down], route, false);
+            unpack(middle, to, upMiddles[up], route, false);
+        }
+    }
+
+    private static int find(final int[] offsets, final int[] ends, final int id, final int end) {
+        for (int edge = offsets[id]; edge < offsets[id + 1]; edge++) {
+            if (ends[edge] == end) {
+                return edge;
+            }
+        }
+        throw new IllegalStateException("No edge between stations " + id + " and " + end);
+    }
+
+    private static int[] offsets(final int[][] edges) {
+        int[] offsets = new int[edges.length + 1];
+        for (int id = 0; id < edges.length; id++) {
+            offsets[id + 1] = offsets[id] + edges[id].length / Contraction.FIELDS;
+        }
+        return offsets;
+    }
+
+    private static void unpackEdges(final int[][] edges, final int[] offsets, final int[] ends, final int[] weights,
+                                    final int[] middles) {
+        for (int id = 0; id < edges.length; id++) {
+            for (int field = 0, edge = offsets[id]; field < edges[id].length; field += Contraction.FIELDS, edge++) {
+                ends[edge] = edges[id][field];
+                weights[edge] = edges[id][field + 1];
+                middles[edge] = edges[id][field + 2];
+            }
+        }
+    }
+
+    /**
+     * Write the hierarchy for a snapshot file, numbering the stations the way the file does.
+     * <p>
+     * The shortcut count comes first, then for every station of the file in order its rank, its edges to higher ranks
+     * and the edges arriving at it from higher ranks, each edge as the number of the station at the other end, the
+     * travel time and the number of the station a shortcut skips, -1 for an edge of the graph. Edges from stations
+     * the file leaves out are left out too, as nothing links to those stations any more.
+     *
+     * @param out
+     *         stream to write to
+     * @param stations
+     *         the stations of the file, in order
+     * @param ids
+     *         the number of each station in the file
+     *
+     * @return false if the hierarchy isn't of the network the stations are from, leaving what was written unusable
+     *
+     * @throws IOException
+     *         if the stream can't be written to
+     */
+    boolean write(final DataOutputStream out, final List<Station> stations, final Map<Station, Integer> ids)
+            throws IOException {
+        out.writeInt(shortcuts);
+        for (var station : stations) {
+            int id = graph.id(station);
+            if (id < 0 || id >= graph.size() || graph.getStation(id) != station) {
+                return false;
+            }
+            out.writeInt(ranks[id]);
+            if (!writeEdges(out, upOffsets, upTargets, upWeights, upMiddles, id, ids) ||
+                !writeEdges(out, downOffsets, downSources, downWeights, downMiddles, id, ids)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean writeEdges(final DataOutputStream out, final int[] offsets, final int[] ends, final int[] weights,
+                               final int[] middles, final int id, final Map<Station, Integer> ids)
+            throws IOException {
+        int count = 0;
+        for (int edge = offsets[id]; edge < offsets[id + 1]; edge++) {
+            if (ids.containsKey(graph.getStation(ends[edge]))) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (int edge = offsets[id]; edge < offsets[id + 1]; edge++) {
+            Integer end    = ids.get(graph.getStation(ends[edge]));
+            Integer middle = middles[edge] == NONE ? Integer.valueOf(NONE) : ids.get(graph.getStation(middles[edge]));
+            if (end == null) {
+                continue;
+            }
+            if (middle == null) {
+                return false;
+            }
+            out.writeInt(end);
+            out.writeInt(weights[edge]);
+            out.writeInt(middle);
+        }
+        return true;
+    }
+
+    /**
+     * A hierarchy read from a snapshot file, with the stations numbered the way the file does until it's matched to
+     * the graph of the network loaded with it.
+     */
+    static final class Saved {
+        private final Station[] stations;
+        private final int[]     ranks;
+        private final int       shortcuts;
+        private final int[][]   up;
+        private final int[][]   down;
+
+        /**
+         * Read a hierarchy saved by {@link #write}.
+         *
+         * @param buffer
+         *         buffer positioned at the hierarchy
+         * @param stations
+         *         the stations of the file, in order
+         *
+         * @throws IndexOutOfBoundsException
+         *         if an edge names a station the file doesn't have
+         * @throws IllegalArgumentException
+         *         if a station has more edges than the section has room for
+         */
+        Saved(final ByteBuffer buffer, final Station[] stations) {
+            this.stations = stations;
+            shortcuts = buffer.getInt();
+            ranks = new int[stations.length];
+            up = new int[stations.length][];
+            down = new int[stations.length][];
+            for (int index = 0; index < stations.length; index++) {
+                ranks[index] = buffer.getInt();
+                up[index] = readEdges(buffer);
+                down[index] = readEdges(buffer);
+            }
+        }
+
+        private int[] readEdges(final ByteBuffer buffer) {
+            int[] edges = new int[Contraction.FIELDS * SnapshotFile.count(buffer, Contraction.FIELDS * Integer.BYTES)];
+            for (int field = 0; field < edges.length; field += Contraction.FIELDS) {
+                edges[field] = Objects.checkIndex(buffer.getInt(), stations.length);
+                edges[field + 1] = buffer.getInt();
+                int middle = buffer.getInt();
+                edges[field + 2] = middle == NONE ? NONE : Objects.checkIndex(middle, stations.length);
+            }
+            return edges;
+        }
+
+        /**
+         * Match the hierarchy to the graph of the network loaded with it.
+         *
+         * @param graph
+         *         the graph of the stations the hierarchy was read with
+         *
+         * @return the hierarchy or null if it doesn't fit the graph, e.g. an edge goes down in rank or isn't one the
+         *         graph has
+         */
+        ContractionHierarchy bind(final MetroGraph graph) {
+            int size = graph.size();
+            if (stations.length != size) {
+                return null;
+            }
+            int[] ids = new int[size];
+            for (int index = 0; index < size; index++) {
+                int id = graph.id(stations[index]);
+                if (id < 0 || id >= size || graph.getStation(id) != stations[index]) {
+                    return null;
+                }
+                ids[index] = id;
+            }
+
+            int[]   graphRanks = new int[size];
+            int[][] graphUp    = new int[size][];
+            int[][] graphDown  = new int[size][];
+            for (int index = 0; index < size; index++) {
+                graphRanks[ids[index]] = ranks[index];
+                graphUp[ids[index]] = renumber(up[index], ids);
+                graphDown[ids[index]] = renumber(down[index], ids);
+            }
+            for (int id = 0; id < size; id++) {
+                if (!fits(graph, graphRanks, graphUp[id], id, true) ||
+                    !fits(graph, graphRanks, graphDown[id], id, false)) {
+                    return null;
+                }
+            }
+            return new ContractionHierarchy(graph, graphRanks, shortcuts, graphUp, graphDown);
+        }
+
+        private static int[] renumber(final int[] edges, final int[] ids) {
+            int[] renumbered = edges.clone();
+            for (int field = 0; field < edges.length; field += Contraction.FIELDS) {
+                renumbered[field] = ids[edges[field]];
+                renumbered[field + 2] = edges[field + 2] == NONE ? NONE : ids[edges[field + 2]];
+            }
+            return renumbered;
+        }
+
+        private static boolean fits(final MetroGraph graph, final int[] ranks, final int[] edges, final int id,
+                                    final boolean leaving) {
+            for (int field = 0; field < edges.length; field += Contraction.FIELDS) {
+                int other = edges[field];
+                if (ranks[other] < ranks[id]) {
+                    return false;
+                }
+                int time = leaving ? graph.linkTime(id, other) : graph.linkTime(other, id);
+                if (edges[field + 2] == NONE && time != edges[field + 1]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The network while it's being contracted.
+     * <p>
+     * Every station keeps lists of the edges leaving and arriving at it that are still in the network, each edge as
+     * three ints: the station at the other end, the travel time and the station a shortcut skips. Only the fastest
+     * edge between two stations is kept.
+     */
+    private static final class Contraction {
+        static final int FIELDS = 3;
+
+        private final int       size;
+        private final int[][]   out;
+        private final int[]     outLength;             // ints used in out, three per edge
+        private final int[][]   in;
+        private final int[]     inLength;
+        private final int[]     priority;
+        private final int[]     contractedNeighbors;
+        private final boolean[] contracted;
+        private final boolean[] contracting;           // contracted in this round
+        private final int[][]   up;                    // edges to higher ranks, saved when a station is contracted
+        private final int[][]   down;
+        private final int[]     ranks;
+        private       int       shortcuts;
+
+        Contraction(final MetroGraph graph) {
+            size = graph.size();
+            out = new int[size][];
+            outLength = new int[size];
+            in = new int[size][];
+            inLength = new int[size];
+            priority = new int[size];
+            contractedNeighbors = new int[size];
+            contracted = new boolean[size];
+            contracting = new boolean[size];
+            up = new int[size][];
+            down = new int[size][];
+            ranks = new int[size];
+
+            for (int id = 0; id < size; id++) {
+                out[id] = new int[FIELDS * (graph.endEdge(id) - graph.firstEdge(id))];
+                in[id] = new int[FIELDS * (graph.endInEdge(id) - graph.firstInEdge(id))];
+            }
+            for (int id = 0; id < size; id++) {
+                for (int edge = graph.firstEdge(id); edge < graph.endEdge(id); edge++) {
+                    if (graph.target(edge) != id) {
+                        addEdge(id, graph.target(edge), graph.weight(edge), NONE);
+                    }
+                }
+            }
+        }
+
+        Contraction run() {
+            int[] remaining = IntStream.range(0, size).toArray();
+            IntStream.range(0, size).parallel().forEach(id -> priority[id] = priority(id));
+
+            boolean[] dirty  = new boolean[size];
+            int       rounds = 0;
+            while (remaining.length > 0 && !isCore(remaining)) {
+                int[] round = Arrays.stream(remaining).parallel().filter(this::ranksBelowNeighbors).toArray();
+                for (int id : round) {
+                    contracting[id] = true;
+                    ranks[id] = rounds;
+                }
+                rounds++;
+                int[][] found = new int[round.length][];
+                IntStream.range(0, round.length).parallel()
+                         .forEach(index -> found[index] = findShortcuts(round[index], WITNESS_LIMIT));
+
+                for (int index = 0; index < round.length; index++) {
+                    contract(round[index], found[index], dirty);
+                }
+                remaining = Arrays.stream(remaining).filter(id -> !contracted[id]).toArray();
+                int[] changed = Arrays.stream(remaining).filter(id -> dirty[id]).toArray();
+                IntStream.of(changed).parallel().forEach(id -> {
+                    priority[id] = priority(id);
+                    dirty[id] = false;
+                });
+            }
+
+            // the core keeps its edges among its own stations, in both directions
+            for (int id : remaining) {
+                up[id] = Arrays.copyOf(out[id], outLength[id]);
+                down[id] = Arrays.copyOf(in[id], inLength[id]);
+                ranks[id] = rounds;
+            }
+            return this;
+        }
+
+        private boolean isCore(final int[] remaining) {
+            long edges = 0;
+            for (int id : remaining) {
+                edges += outLength[id] / FIELDS;
+            }
+            return edges > (long) CORE_DEGREE * remaining.length;
+        }
+
+        /**
+         * Take a station out of the network, saving its edges to the stations still in it for the hierarchy.
+         */
+        private void contract(final int id, final int[] found, final boolean[] dirty) {
+            up[id] = Arrays.copyOf(out[id], outLength[id]);
+            down[id] = Arrays.copyOf(in[id], inLength[id]);
+            contracted[id] = true;
+            contracting[id] = false;
+
+            for (int field = 0; field < up[id].length; field += FIELDS) {
+                int target = up[id][field];
+                inLength[target] = removeEdge(in[target], inLength[target], id);
+                contractedNeighbors[target]++;
+                dirty[target] = true;
+            }
+            for (int field = 0; field < down[id].length; field += FIELDS) {
+                int source = down[id][field];
+                outLength[source] = removeEdge(out[source], outLength[source], id);
+                contractedNeighbors[source]++;
+                dirty[source] = true;
+            }
+            for (int field = 0; field < found.length; field += FIELDS) {
+                addEdge(found[field], found[field + 1], found[field + 2], id);
+                shortcuts++;
+            }
+        }
+
+        /**
+         * Cost of contracting a station next: the shortcuts it would add less the edges it would take away, plus the
+         * neighbors already contracted so the contraction spreads evenly over the network.
+         */
+        private int priority(final int id) {
+            return findShortcuts(id, ESTIMATE_LIMIT).length / FIELDS - (outLength[id] + inLength[id]) / FIELDS
+                   + contractedNeighbors[id];
+        }
+
+        private boolean ranksBelowNeighbors(final int id) {
+            for (int field = 0; field < outLength[id]; field += FIELDS) {
+                if (ranksBelow(out[id][field], id)) {
+                    return false;
+                }
+            }
+            for (int field = 0; field < inLength[id]; field += FIELDS) {
+                if (ranksBelow(in[id][field], id)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean ranksBelow(final int id, final int other) {
+            return priority[id] < priority[other] || priority[id] == priority[other] && id < other;
+        }
+
+        /**
+         * Find the shortcuts contracting a station needs.
+         * <p>
+         * From each station with an edge to it, a Dijkstra search that avoids it and every other station contracted in
+         * the same round looks for a witness: another route to each station it has an edge to that is no slower. Where
+         * there is none, or the search gives up before finding one, a shortcut is needed.
+         *
+         * @param id
+         *         the station to contract
+         * @param settleLimit
+         *         stations each search settles before giving up
+         *
+         * @return source, target and travel time of each shortcut
+         */
+        private int[] findShortcuts(final int id, final int settleLimit) {
+            Search search = witnessSearches.get().prepare(size, false);
+            int[]  found  = new int[0];
+            int    count  = 0;
+
+            for (int inField = 0; inField < inLength[id]; inField += FIELDS) {
+                int source = in[id][inField];
+                int toId   = in[id][inField + 1];
+                int limit  = 0;
+                for (int field = 0; field < outLength[id]; field += FIELDS) {
+                    limit = Math.max(limit, toId + out[id][field + 1]);
+                }
+
+                search.reach(source, 0, NONE, NONE);
+                for (int settled = 0; !search.queue.isEmpty() && settled < settleLimit; settled++) {
+                    int node = search.queue.pop();
+                    if (search.time[node] > limit) {
+                        break;
+                    }
+                    for (int field = 0; field < outLength[node]; field += FIELDS) {
+                        int target  = out[node][field];
+                        int arrival = search.time[node] + out[node][field + 1];
+                        if (arrival <= limit && target != id && !contracting[target] && arrival < search.time[target]) {
+                            search.reach(target, arrival, NONE, NONE);
+                        }
+                    }
+                }
+
+                for (int field = 0; field < outLength[id]; field += FIELDS) {
+                    int target = out[id][field];
+                    int time   = toId + out[id][field + 1];
+                    if (target != source && search.time[target] > time) {
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, Math.max(FIELDS * 4, found.length * 2));
+                        }
+                        found[count++] = source;
+                        found[count++] = target;
+                        found[count++] = time;
+                    }
+                }
+                search.reset();
+            }
+            return Arrays.copyOf(found, count);
+        }
+
+        private void addEdge(final int from, final int to, final int weight, final int middle) {
+            int field = findEdge(out[from], outLength[from], to);
+            if (field >= 0) {
+                if (weight < out[from][field + 1]) {
+                    setEdge(out[from], field, to, weight, middle);
+                    setEdge(in[to], findEdge(in[to], inLength[to], from), from, weight, middle);
+                }
+                return;
+            }
+
+            out[from] = grow(out[from], outLength[from]);
+            setEdge(out[from], outLength[from], to, weight, middle);
+            outLength[from] += FIELDS;
+            in[to] = grow(in[to], inLength[to]);
+            setEdge(in[to], inLength[to], from, weight, middle);
+            inLength[to] += FIELDS;
+        }
+
+        private static int findEdge(final int[] edges, final int length, final int end) {
+            for (int field = 0; field < length; field += FIELDS) {
+                if (edges[field] == end) {
+                    return field;
+                }
+            }
+            return NONE;
+        }
+
+        private static int removeEdge(final int[] edges, final int length, final int end) {
+            int field = findEdge(edges, length, end);
+            if (field < 0) {
+                return length;
+            }
+            System.arraycopy(edges, length - FIELDS, edges, field, FIELDS);   // the last edge takes its place
+            return length - FIELDS;
+        }
+
+        private static void setEdge(final int[] edges, final int field, final int end, final int weight,
+                                    final int middle) {
+            edges[field] = end;
+            edges[field + 1] = weight;
+            edges[field + 2] = middle;
+        }
+
+        private static int[] grow(final int[] edges, final int length) {
+            return length < edges.length ? edges : Arrays.copyOf(edges, Math.max(FIELDS * 2, edges.length * 2));
+        }
+    }
+
+    /**
+     * Times, parents and queue of one search, kept between searches so a query only touches the stations it reaches.
+     */
+    private static final class Search {
+        private int[]          time     = new int[0];   // INFINITY where not reached
+        private int[]          parent   = new int[0];   // station the search reached each station from
+        private int[]          edge     = new int[0];   // edge it took to get there
+        private int[]          reached  = new int[16];  // stations with a time, to reset them
+        private int            count;
+        private IndexedMinHeap queue    = new IndexedMinHeap(0);
+        private int            capacity;
+        private int            settled;                 // stations taken from the queue since prepare()
+        private int[]          stack    = new int[16];  // stations waiting for those ranked above them
+
+        Search prepare(final int size, final boolean parents) {
+            settled = 0;
+            if (capacity < size) {
+                capacity = size;
+                time = new int[size];
+                Arrays.fill(time, INFINITY);
+                queue = new IndexedMinHeap(size);
+                parent = new int[0];
+                edge = new int[0];
+            }
+            if (parents && parent.length < capacity) {
+                parent = new int[capacity];
+                edge = new int[capacity];
+            }
+            return this;
+        }
+
+        /**
+         * Time of the station the search would settle next.
+         *
+         * @return its time, INFINITY if the search is done
+         */
+        int next() {
+            return queue.isEmpty() ? INFINITY : time[queue.peek()];
+        }
+
+        /**
+         * Take the station with the lowest time from the queue.
+         *
+         * @return its id
+         */
+        int settle() {
+            settled++;
+            return queue.pop();
+        }
+
+        void reach(final int id, final int arrival, final int from, final int via) {
+            record(id, arrival);
+            if (parent.length > 0) {
+                parent[id] = from;
+                edge[id] = via;
+            }
+            queue.push(id, arrival);
+        }
+
+        /**
+         * Give a station a time without queueing it.
+         */
+        void record(final int id, final int arrival) {
+            if (time[id] == INFINITY) {
+                if (count == reached.length) {
+                    reached = Arrays.copyOf(reached, count * 2);
+                }
+                reached[count++] = id;
+            }
+            time[id] = arrival;
+        }
+
+        void reset() {
+            while (!queue.isEmpty()) {
+                queue.pop();
+            }
+            for (int index = 0; index < count; index++) {
+                time[reached[index]] = INFINITY;
+            }
+            count = 0;
+        }
+    }
+}
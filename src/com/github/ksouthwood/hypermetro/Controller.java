@@ -1,210 +1,487 @@
 package com.github.ksouthwood.hypermetro;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Controller {
     private final HashMap<String, MetroLine> metroLines;
+    private final Symbols                    symbols;         // of the network, shared with its lines
+    private final SymbolMap<MetroLine>       linesBySymbol;   // the same lines keyed by the symbol of their name
     private final CommandParser              parser;
+    private final OutputSink                 out;
+
+    private final ChangeLog                  changes = new ChangeLog();
+
+    private final AtomicReference<NetworkSnapshot> snapshot;   // the version of the network readers see
+
+    private MetroGraph graph;          // indexed view of the network, patched after the topology changes
+    private long       graphVersion;   // version of the change log the graph was built for
 
     Controller(HashMap<String, MetroLine> lines, CommandParser parser) {
+        this(lines, parser, new OutputSink(System.out));
+    }
+
+    /**
+     * Create a controller that is only driven through {@link #execute(List, OutputSink)}, each caller passing its own
+     * sink.
+     *
+     * @param lines
+     *         the lines of the network
+     */
+    Controller(HashMap<String, MetroLine> lines) {
+        this(lines, null, new OutputSink());
+    }
+
+    Controller(HashMap<String, MetroLine> lines, CommandParser parser, OutputSink out) {
+        this(lines, null, parser, out);
+    }
+
+    /**
+     * Create a controller for a network loaded along with its contraction hierarchy.
+     *
+     * @param lines
+     *         the lines of the network
+     * @param hierarchy
+     *         contraction hierarchy read from the snapshot file with the network, null if there is none
+     * @param parser
+     *         parser to read commands from, null if only driven through {@link #execute(List, OutputSink)}
+     * @param out
+     *         sink for the output of commands read from the parser
+     */
+    Controller(HashMap<String, MetroLine> lines, ContractionHierarchy.Saved hierarchy, CommandParser parser,
+               OutputSink out) {
         this.metroLines = lines;
         this.parser = parser;
+        this.out = out;
+        this.symbols = lines.isEmpty() ? new Symbols() : lines.values().iterator().next().getSymbols();
+        this.linesBySymbol = new SymbolMap<>(lines.size());
+        lines.forEach((name, line) -> linesBySymbol.put(symbols.intern(name), line));
+        lines.values().forEach(line -> line.setChangeLog(changes));
+        this.graph = new MetroGraph(lines.values());
+        this.snapshot = new AtomicReference<>(NetworkSnapshot.of(symbols, lines.values(), graph, hierarchy));
     }
 
     void start() {
         boolean processCommands = true;
 
         while (processCommands) {
-            var command = parser.getCommand();
-            switch (command.get(0)) {
-                case "/exit" -> processCommands = false;
-
-                // command(1) is line name to output
-                case "/output" -> {
-                    if (command.size() == 2) {
-                        var lineName = command.get(1);
-                        if (isValidLineName(lineName)) {
-                            metroLines.get(lineName).printStations();
+            processCommands = execute(parser.getCommand());
+            out.flush();
+        }
+    }
+
+    /**
+     * Run a single command, leaving its output in the sink.
+     *
+     * @param command
+     *         Valid command as a list of strings.
+     *
+     * @return false if the command was /exit, true otherwise
+     */
+    boolean execute(final List<String> command) {
+        return execute(command, out);
+    }
+
+    /**
+     * Run a single command, leaving its output in the given sink.
+     *
+     * @param command
+     *         Valid command as a list of strings.
+     * @param out
+     *         sink to print the output to
+     *
+     * @return false if the command was /exit, true otherwise
+     */
+    boolean execute(final List<String> command, final OutputSink out) {
+        long started = Metrics.start();
+        switch (command.get(0)) {
+            case "/exit" -> {
+                return false;
+            }
+
+            // command(1) is line name to output, command(2) and command(3) the optional first station and count
+            case "/output" -> {
+                publish();
+                printLine(command, out);
+            }
+
+            // for /append, /add-head and /remove,
+            // command(1) is line name to append station to
+            // command(2) is the station name to append/add/remove
+            case "/append", "/add-head" -> {
+                if (command.size() == 3 || command.size() == 4) {
+                    var lineName = command.get(1);
+                    var statName = command.get(2);
+                    var time     = command.size() == 4 ? Integer.parseInt(command.get(3)) : 0;
+                    if (isValidLineName(lineName, out)) {
+                        if (command.get(0).equals("/append")) {
+                            getLine(lineName).append(statName, time);
+                        } else {
+                            getLine(lineName).addHead(statName, time);
                         }
-                    } else {
-                        System.out.println("Invalid format! Command should be: /output LINE");
                     }
+                } else {
+                    out.print("Invalid format! Command should be: ").print(command.get(0)).println(" LINE STATION [TIME]");
                 }
-
-                // for /append, /add-head and /remove,
-                // command(1) is line name to append station to
-                // command(2) is the station name to append/add/remove
-                case "/append", "/add-head" -> {
-                    if (command.size() == 3 || command.size() == 4) {
-                        var lineName = command.get(1);
-                        var statName = command.get(2);
-                        var time     = command.size() == 4 ? Integer.parseInt(command.get(3)) : 0;
-                        if (isValidLineName(lineName)) {
-                            if (command.get(0).equals("/append")) {
-                                metroLines.get(lineName).append(statName, time);
-                            } else {
-                                metroLines.get(lineName).addHead(statName, time);
-                            }
-                        }
-                    } else {
-                        System.out.printf("Invalid format! Command should be: %s LINE STATION [TIME]%n",
-                                          command.get(0));
+            }
+            case "/remove" -> {
+                if (command.size() == 3) {
+                    var lineName = command.get(1);
+                    if (isValidLineName(lineName, out)) {
+                        getLine(lineName).remove(command.get(2));
                     }
+                } else {
+                    out.println("Invalid format! Command should be: /remove LINE STATION");
                 }
-                case "/remove" -> {
-                    if (command.size() == 3) {
-                        var lineName = command.get(1);
-                        if (isValidLineName(lineName)) {
-                            metroLines.get(lineName).remove(command.get(2));
+            }
+
+            // command(1) and command(3) are the line names to connect,
+            // command(2) and command(4) are the station names
+            case "/connect" -> {
+                if (command.size() == 5) {
+                    var lineFrom = command.get(1);
+                    var lineTo   = command.get(3);
+                    if (isValidLineName(lineFrom, out) && isValidLineName(lineTo, out)) {
+                        Station stationFrom = getLine(lineFrom).getStation(command.get(2), out);
+                        Station stationTo   = getLine(lineTo).getStation(command.get(4), out);
+                        if (stationFrom != null && stationTo != null) {
+                            stationFrom.setTransfers(stationTo);
+                            stationTo.setTransfers(stationFrom);
+                            changes.addEdge(stationFrom, stationTo);
+                            changes.addEdge(stationTo, stationFrom);
                         }
-                    } else {
-                        System.out.println("Invalid format! Command should be: /remove LINE STATION");
                     }
+                } else {
+                    out.println("Invalid format! Command should be: /connect LINE1 STATION1 LINE2 STATION2");
                 }
+            }
 
-                // command(1) and command(3) are the line names to connect,
-                // command(2) and command(4) are the station names
-                case "/connect" -> {
-                    if (command.size() == 5) {
-                        var lineFrom = command.get(1);
-                        var lineTo   = command.get(3);
-                        if (isValidLineName(lineFrom) && isValidLineName(lineTo)) {
-                            Station stationFrom = metroLines.get(lineFrom)
-                                                            .getStation(command.get(2));
-                            Station stationTo = metroLines.get(lineTo)
-                                                          .getStation(command.get(4));
-                            if (stationFrom != null && stationTo != null) {
-                                stationFrom.setTransfers(stationTo);
-                                stationTo.setTransfers(stationFrom);
+            // command(1) is the line, command(2) and command(3) the stations to travel between along it
+            case "/time" -> {
+                if (command.size() == 4) {
+                    var lineName = command.get(1);
+                    if (isValidLineName(lineName, out)) {
+                        var     line = getLine(lineName);
+                        Station from = line.getStation(command.get(2), out);
+                        Station to   = line.getStation(command.get(3), out);
+                        if (from != null && to != null) {
+                            int time = line.travelTime(from, to);
+                            if (time < 0) {
+                                out.println("No route found between the stations.");
+                            } else {
+                                out.print("Total trip time: ").print(time).println(" minutes.");
                             }
                         }
-                    } else {
-                        System.out.println("Invalid format! Command should be: " +
-                                           "/connect LINE1 STATION1 LINE2 STATION2");
                     }
+                } else {
+                    out.println("Invalid format! Command should be: /time LINE STATION_A STATION_B");
                 }
+            }
 
-                // command(1) and command(2) are the starting line and station name (respectively) of the route
-                // to find to command(3) and command(4), the ending line and station name (respectively)
-                case "/route" -> {
-                    if (command.size() == 5) {
-                        Station start = metroLines.get(command.get(1)).getStation(command.get(2));
-                        Station end   = metroLines.get(command.get(3)).getStation(command.get(4));
-                        printRoute(getRoute(start, end, false).getFirst());
-                    } else {
-                        System.out.println("Invalid format! Command should be: " +
-                                           "/route START_LINE START_STATION END_LINE END_STATION");
-                    }
-                }
+            case "/route", "/fastest-route", "/pareto-route", "/alternatives" ->
+                    answerRouteQuery(command, out, publish());
 
-                case "/fastest-route" -> {
-                    if (command.size() == 5) {
-                        Station start = metroLines.get(command.get(1)).getStation(command.get(2));
-                        Station end   = metroLines.get(command.get(3)).getStation(command.get(4));
-                        var     paths = getRoute(start, end, true);
-                        fastestRoute(paths);
-                    } else {
-                        System.out.println("Invalid format! Command should be: " +
-                                           "/fastest-route START_LINE START_STATION END_LINE END_STATION");
+            // command(1) is the file to write the binary snapshot of the network to
+            case "/export" -> {
+                if (command.size() == 2) {
+                    try {
+                        // saving the hierarchy builds it if no route query has yet
+                        var hierarchy = ContractionHierarchy.isEnabled() ? publish().getRouteFinder().getHierarchy()
+                                                                         : null;
+                        SnapshotFile.write(command.get(1), metroLines, hierarchy);
+                    } catch (IOException e) {
+                        out.println("Error! Could not write snapshot: " + e.getMessage());
                     }
+                } else {
+                    out.println("Invalid format! Command should be: /export FILE");
                 }
             }
+            case "/stats" -> Metrics.print(out);
+        }
+
+        Metrics.time(command.get(0), started);
+        return true;
+    }
+
+    /**
+     * Answer an /output command.
+     * <p>
+     * Only reads the current snapshot of the network, so it can run on any thread.
+     *
+     * @param command
+     *         the /output command, command(1) is line name to output, optionally followed by the position of the
+     *         first station to output, counting from 1, and how many stations to output in command(2) and command(3)
+     * @param out
+     *         sink to print the stations to
+     */
+    void printLine(final List<String> command, final OutputSink out) {
+        int from  = 1;
+        int count = Integer.MAX_VALUE;
+        if (command.size() == 4) {
+            from = parsePositive(command.get(2));
+            count = parsePositive(command.get(3));
+        }
+        if (command.size() != 2 && command.size() != 4 || from < 1 || count < 1) {
+            out.println("Invalid format! Command should be: /output LINE [FROM COUNT]");
+            return;
+        }
+
+        var lineName = command.get(1);
+        if (isValidLineName(lineName, out)) {
+            getSnapshot().getLine(lineName).printStations(out, from - 1, count);
+        }
+    }
+
+    private static int parsePositive(final String number) {
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
     /**
-     * Determines if the line name is valid or not.
+     * Answer a /route, /fastest-route, /pareto-route or /alternatives command.
+     * <p>
+     * Only reads a snapshot of the network, so queries can be answered on several threads at once, even while the
+     * network changes, when each has its own output sink. Routes are found through the route cache of the snapshot.
+     *
+     * @param command
+     *         the route command, command(1) and command(2) are the starting line and station name (respectively) of
+     *         the route to find to command(3) and command(4), the ending line and station name (respectively);
+     *         /alternatives also has the number of routes to find in command(5)
+     * @param out
+     *         sink to print the answer to
+     * @param network
+     *         the snapshot to look the stations up and find the route in
+     */
+    void answerRouteQuery(final List<String> command, final OutputSink out, final NetworkSnapshot network) {
+        var  mode      = command.get(0);
+        long started   = Metrics.start();
+        long allocated = Metrics.allocated();
+        boolean alternatives = mode.equals("/alternatives");
+        int     count        = alternatives && command.size() == 6 ? parsePositive(command.get(5)) : 0;
+        if (command.size() != (alternatives ? 6 : 5) || alternatives && count < 1) {
+            out.print("Invalid format! Command should be: ").print(mode)
+               .print(" START_LINE START_STATION END_LINE END_STATION").println(alternatives ? " K" : "");
+            return;
+        }
+        if (!isValidLineName(command.get(1), out) || !isValidLineName(command.get(3), out)) {
+            return;
+        }
+
+        Station start = network.getLine(command.get(1)).getStation(command.get(2), out);
+        Station end   = network.getLine(command.get(3)).getStation(command.get(4), out);
+        if (start == null || end == null) {
+            return;
+        }
+
+        Metrics.time(mode, "lookup", started);
+        if (mode.equals("/pareto-route")) {
+            answerParetoQuery(out, network, start, end);
+            Metrics.allocated(mode, allocated);
+            return;
+        }
+        if (alternatives) {
+            answerAlternativesQuery(out, network, start, end, count);
+            Metrics.allocated(mode, allocated);
+            return;
+        }
+
+        long  searched = Metrics.start();
+        Route route    = network.findRoute(mode, start, end);
+        Metrics.time(mode, "search", searched);
+
+        long printed = Metrics.start();
+        if (route == null) {
+            out.println("No route found between the stations.");
+        } else if (mode.equals("/route")) {
+            printRoute(route.stations(), out);
+        } else {
+            printFastestRoute(route.stations(), route.time(), out);
+        }
+        Metrics.time(mode, "print", printed);
+        Metrics.allocated(mode, allocated);
+    }
+
+    /**
+     * Print the fastest route for every number of transfers that saves time over fewer transfers. These aren't cached,
+     * the route cache holds a single route per pair of stations.
+     */
+    private void answerParetoQuery(final OutputSink out, final NetworkSnapshot network, final Station start,
+                                   final Station end) {
+        long searched = Metrics.start();
+        var  journeys = network.getParetoRouter().find(start, end);
+        Metrics.time("/pareto-route", "search", searched);
+
+        long printed = Metrics.start();
+        if (journeys.isEmpty()) {
+            out.println("No route found between the stations.");
+        }
+        for (var journey : journeys) {
+            int transfers = journey.transfers();
+            out.print("With ").print(transfers).println(transfers == 1 ? " transfer:" : " transfers:");
+            printFastestRoute(journey.route().stations(), journey.route().time(), out);
+        }
+        Metrics.time("/pareto-route", "print", printed);
+    }
+
+    /**
+     * Print the fastest routes between two stations that don't pass a station twice, numbered from the fastest.
+     */
+    private void answerAlternativesQuery(final OutputSink out, final NetworkSnapshot network, final Station start,
+                                         final Station end, final int count) {
+        long searched = Metrics.start();
+        var  routes   = network.getAlternativeRouter().find(start, end, count);
+        Metrics.time("/alternatives", "search", searched);
+
+        long printed = Metrics.start();
+        if (routes.isEmpty()) {
+            out.println("No route found between the stations.");
+        }
+        for (int index = 0; index < routes.size(); index++) {
+            out.print("Route ").print(index + 1).println(":");
+            printFastestRoute(routes.get(index).stations(), routes.get(index).time(), out);
+        }
+        Metrics.time("/alternatives", "print", printed);
+    }
+
+    /**
+     * Determines if the line name is valid or not. Lines are never added or removed, so this is safe from any thread.
      *
      * @param lineName
      *         String containing the name of the line to check for
+     * @param out
+     *         sink to print the error to
      *
      * @return true if the line is in our lines map
      */
-    private boolean isValidLineName(final String lineName) {
-        if (metroLines.containsKey(lineName)) {
+    private boolean isValidLineName(final String lineName, final OutputSink out) {
+        if (getLine(lineName) != null) {
             return true;
         }
-        System.out.println("Invalid line name: " + lineName);
+        out.println("Invalid line name: " + lineName);
         return false;
     }
 
     /**
-     * Find a route between two stations using breadth first search
-     * <p>
-     * Takes two stations and attempts to find a route between them. If successful, returns a linked list containing all
-     * the stations on the path. Otherwise, we return null indicating failure to find a route.
+     * Look up a line by name through the symbol table.
      *
-     * @param start
-     *         Station object to start the search from
-     * @param end
-     *         Station object to begin the search from
-     * @param getAllPaths
-     *         flag for if we find all paths or just the first one
+     * @param lineName
+     *         name of the line
      *
-     * @return a linked list containing all the stations on the route or null if we couldn't find a route
+     * @return the line or null if there is no line with that name
      */
-    LinkedList<LinkedList<Station>> getRoute(final Station start, final Station end,
-                                             final boolean getAllPaths) {
-        LinkedList<LinkedList<Station>> paths = new LinkedList<>();
+    private MetroLine getLine(final String lineName) {
+        return linesBySymbol.get(symbols.lookup(lineName));
+    }
 
-        if (start != null && end != null) {
-            LinkedList<LinkedList<Station>> queue   = new LinkedList<>();
-            HashSet<Station>                visited = new HashSet<>();
+    /**
+     * Get the latest published version of the network. Safe to call from any thread, but doesn't include changes made
+     * since the last {@link #publish()}.
+     *
+     * @return the latest published snapshot
+     */
+    NetworkSnapshot getSnapshot() {
+        return snapshot.get();
+    }
 
-            queue.addLast(new LinkedList<>(List.of(start)));
+    /**
+     * Get a route finder searching the current version of the network.
+     *
+     * @return the RouteFinder of the snapshot
+     */
+    RouteFinder getRouteFinder() {
+        return publish().getRouteFinder();
+    }
 
-            while (!queue.isEmpty()) {
-                var path = queue.removeFirst(); // get the first path in the queue
-                var node = path.getLast(); // get the last node in the path
-                if (node == end) {  // if the node matches the end, we're done
-                    paths.add(path);
-                    if (getAllPaths) {
-                        continue;
-                    }
-                    return paths;
-                }
+    /**
+     * Publish the next version of the network if it changed since the last one, copying the lines that changed.
+     * <p>
+     * Only called by the thread running the commands, when something is about to read the network, so a series of
+     * changes is published in one go.
+     *
+     * @return the current snapshot
+     */
+    NetworkSnapshot publish() {
+        var current = getSnapshot();
+        if (current.getVersion() == changes.getVersion()) {
+            return current;
+        }
+        var pending = changes.since(current.getVersion());
+        if (pending != null) {
+            pending = List.copyOf(pending);   // getGraph() trims them from the log
+        }
 
-                if (!visited.contains(node)) {  // check if we've already visited this node
-                    for (var neighbor : node.getNeighbors()) {  // add the neighbors of the node to the path
-                        var newPath = new LinkedList<>(path);
-                        newPath.addLast(neighbor);
-                        queue.addLast(newPath); // add the new path with a neighbor to the queue
-                    }
-                    visited.add(node);  // mark the node as visited
+        Collection<MetroLine> changed;
+        if (pending == null) {
+            changed = metroLines.values();
+        } else {
+            Set<MetroLine> touched = new HashSet<>();
+            for (var change : pending) {
+                touched.add(getLine(change.station().getLine()));
+                if (change.other() != null) {
+                    touched.add(getLine(change.other().getLine()));
                 }
             }
+            touched.remove(null);   // a station of a line that isn't part of the network
+            changed = touched;
         }
-
-        return (getAllPaths && !paths.isEmpty()) ? paths : null;
+        var next = current.next(changes.getVersion(), changed, getGraph(), pending);
+        snapshot.set(next);
+        return next;
     }
 
-    private void fastestRoute(LinkedList<LinkedList<Station>> paths) {
-        LinkedList<Station> shortestPath = new LinkedList<>();
-        int                 shortestTime = Integer.MAX_VALUE;
-
-        for (var path : paths) {
-            int time = 0;
+    /**
+     * Get the indexed view of the network, patching it with the changes made since it was built, or rebuilding it when
+     * there are more than the rebuild threshold or removed stations hold too many of its ids.
+     *
+     * @return the current MetroGraph
+     */
+    MetroGraph getGraph() {
+        long version = changes.getVersion();
+        if (graphVersion != version) {
+            var pending = changes.since(graphVersion);
+            graph = pending == null || pending.size() > ChangeLog.rebuildThreshold() || graph.hasManyRemoved()
+                    ? graph.rebuild(metroLines.values()) : graph.patch(pending);
+            graphVersion = version;
+            changes.trim(version);
+        }
+        return graph;
+    }
 
-            for (int index = 1; index < path.size(); index++) {
-                Station curr = path.get(index);
-                Station prev = path.get(index - 1);
-                // if the line name doesn't match, we did a transfer
-                if (!curr.getLine().equals(prev.getLine())) {
-                    time += 5;  // add the transfer time
-                    continue;   // and continue the loop
-                }
-                time += curr.getNext().contains(prev) ? curr.getTime() : prev.getTime();
-            }
+    /**
+     * Find the route with the fewest stops between two stations.
+     *
+     * @param start
+     *         Station object to start the search from
+     * @param end
+     *         Station object to end the search at
+     *
+     * @return the route with its total time or null if we couldn't find a route
+     */
+    Route getRoute(final Station start, final Station end) {
+        return publish().findRoute("/route", start, end);
+    }
 
-            if (time < shortestTime) {
-                shortestPath = path;
-                shortestTime = time;
-            }
-        }
-        printFastestRoute(shortestPath, shortestTime);
+    /**
+     * Find the fastest route between two stations, taking travel and transfer times into account.
+     *
+     * @param start
+     *         Station object to start the search from
+     * @param end
+     *         Station object to end the search at
+     *
+     * @return the fastest route with its total time or null if we couldn't find a route
+     */
+    Route getFastestRoute(final Station start, final Station end) {
+        return publish().findRoute("/fastest-route", start, end);
     }
 
     /**
@@ -213,20 +490,22 @@ public class Controller {
      *
      * @param route
      *         a linked list of stations forming the route between stations
+     * @param out
+     *         sink to print the route to
      */
-    void printRoute(final LinkedList<Station> route) {
-        Station previous = new Station("", route.getFirst().getLine());
+    void printRoute(final LinkedList<Station> route, final OutputSink out) {
+        String previousLine = route.getFirst().getLine();
         for (Station station : route) {
-            if (!station.getLine().equals(previous.getLine())) {
-                System.out.println("Transfer to: " + station.getLine());
+            if (!station.getLine().equals(previousLine)) {
+                out.print("Transfer to: ").println(station.getLine());
             }
-            System.out.println(station.getName());
-            previous = station;
+            out.println(station.getName());
+            previousLine = station.getLine();
         }
     }
 
-    void printFastestRoute(final LinkedList<Station> route, final int time) {
-        printRoute(route);
-        System.out.printf("Total trip time: %d minutes.%n", time);
+    void printFastestRoute(final LinkedList<Station> route, final int time, final OutputSink out) {
+        printRoute(route, out);
+        out.print("Total trip time: ").print(time).println(" minutes.");
     }
 }
@@ -1,17 +1,34 @@
 package com.github.ksouthwood.hypermetro;
 
-import com.google.gson.*;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 public class FileOperations {
-    private static final HashMap<Station, HashMap<String, String>> TRANSFERS = new HashMap<>();
-
-    private static String lineName;
+    /**
+     * The stations of a line as read from the file, waiting to be linked into a MetroLine.
+     *
+     * @param name
+     *         name of the line
+     * @param transfers
+     *         names of the stations to transfer to, keyed by line name, for each station of the line that has any
+     * @param linker
+     *         links the stations of the line to their previous and next stops and creates the MetroLine
+     */
+    private record LineDraft(String name, HashMap<Station, HashMap<String, String>> transfers,
+                             Callable<MetroLine> linker) {
+    }
 
     private FileOperations() {
     }
@@ -46,193 +63,347 @@ public class FileOperations {
     /**
      * Parse a JSON file and create necessary objects.
      * <p>
-     * Parse the JSON file creating MetroLine and Station objects as needed in the specified order.
+     * Stream the JSON file token by token creating the Station objects of each line in the specified order, without
+     * building a parse tree of the whole file first. Lines don't depend on each other until their transfers are wired,
+     * so each line is then linked into its MetroLine on its own fork-join task, and the transfers of each line are
+     * resolved on a task of their own, which only changes the stations of that line. Each file gets a symbol table of
+     * its own and no other state is shared between calls, so several files can be read at the same time.
      *
      * @param file
      *         Object to read JSON from.
      */
-    private static void parseJSONFile(final BufferedReader file, HashMap<String, MetroLine> metroLines) throws JsonSyntaxException {
-        // map to hold each metro line keyed by line name
-        TRANSFERS.clear();
+    private static void parseJSONFile(final BufferedReader file, HashMap<String, MetroLine> metroLines)
+            throws JsonSyntaxException, IOException {
+        JsonReader reader = new JsonReader(file);
+        reader.setStrictness(Strictness.LENIENT);
+
+        List<LineDraft> drafts;
+        try {
+            try {
+                reader.peek();
+            } catch (EOFException e) {     // nothing but whitespace, the file read is empty
+                return;
+            }
 
-        JsonElement fileJsonParseTree = JsonParser.parseReader(file);
+            drafts = readLines(reader, new Symbols());
 
-        if (fileJsonParseTree.isJsonNull()) {     // if we have a JsonNull value, the file read is empty
-            return;
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("Did not consume the entire document.");
+            }
+        } catch (EOFException | MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // the file ended early, isn't valid JSON or doesn't have the structure we expect
+            throw new JsonSyntaxException(e);
         }
 
-        createLines(fileJsonParseTree.getAsJsonObject(), metroLines);
+        createLines(drafts, metroLines);
 
         // add any transfer points between the lines. Needs to be done after the lines
         // are created to ensure we have all the necessary station objects created.
-        for (var transferFromStation : TRANSFERS.keySet()) {
-            var transferLines = TRANSFERS.get(transferFromStation);
-            transferLines.forEach((line, station) -> {
-                Station transferToStation = metroLines.get(line).getStation(station);
-                transferFromStation.setTransfers(transferToStation);
-            });
-        }
+        var out = new OutputSink(System.out);
+        drafts.parallelStream().map(draft -> resolveTransfers(draft, metroLines)).forEachOrdered(out::print);
+        out.flush();
     }
 
     /**
-     * Creates the map of lines and stations.
+     * Wire the transfers of the stations of one line.
      * <p>
-     * Goes through the parse tree of the file processing each line object and returning a map of each line with their
-     * respective stations in the correct order.
+     * Runs on a task of its own, so transfers to stations that don't exist are reported in the text returned rather
+     * than printed, and printed by the caller in file order.
+     *
+     * @param draft
+     *         the line whose transfers to wire
+     * @param metroLines
+     *         every line of the file, already created
      *
-     * @param fileObject
-     *         the JSON object holding the parse tree of the read file
+     * @return the messages for transfers to stations that don't exist, empty if there are none
      */
-    private static void createLines(final JsonObject fileObject, HashMap<String, MetroLine> metroLines) {
-        // iterate over each metro line in the file
-        for (var metroLine : fileObject.entrySet()) {
-            lineName = metroLine.getKey();
-            var stations = metroLine.getValue();
+    private static String resolveTransfers(final LineDraft draft, final HashMap<String, MetroLine> metroLines) {
+        var missing = new OutputSink();
+        draft.transfers().forEach((transferFromStation, transferLines) -> transferLines.forEach((line, station) -> {
+            Station transferToStation = metroLines.get(line).getStation(station, missing);
+            transferFromStation.setTransfers(transferToStation);
+        }));
+        return missing.take();
+    }
 
+    /**
+     * Read the lines of the file.
+     * <p>
+     * Reads each line object of the file, creating the stations of the line in the correct order.
+     *
+     * @param reader
+     *         the JSON reader positioned at the start of the file object
+     * @param symbols
+     *         symbol table of the network read
+     *
+     * @return the lines read, in file order
+     */
+    private static List<LineDraft> readLines(final JsonReader reader, final Symbols symbols) throws IOException {
+        List<LineDraft> drafts = new ArrayList<>();
 
-            if (stations.isJsonObject()) {
-                createLineFromJsonObject(stations.getAsJsonObject(), metroLines);
+        // iterate over each metro line in the file
+        reader.beginObject();
+        while (reader.hasNext()) {
+            var lineName = reader.nextName();
+
+            switch (reader.peek()) {
+                case BEGIN_OBJECT -> drafts.add(readLineFromJsonObject(reader, lineName, symbols));
+                case BEGIN_ARRAY -> drafts.add(readLineFromJsonArray(reader, lineName, symbols));
+                default -> reader.skipValue();
             }
+        }
+        reader.endObject();
 
-            if (stations.isJsonArray()) {
-                createLineFromJsonArray(stations.getAsJsonArray(), metroLines);
-            }
+        return drafts;
+    }
+
+    /**
+     * Creates the map of lines and stations.
+     * <p>
+     * Links the stations of each line on a fork-join task of its own and adds each line to the map of lines.
+     *
+     * @param drafts
+     *         the lines read from the file, in file order
+     */
+    private static void createLines(final List<LineDraft> drafts, HashMap<String, MetroLine> metroLines) {
+        var pool  = ForkJoinPool.commonPool();
+        var tasks = drafts.stream().map(draft -> pool.submit(draft.linker())).toList();
+
+        for (int index = 0; index < drafts.size(); index++) {
+            metroLines.put(drafts.get(index).name(), tasks.get(index).join());
         }
     }
 
-    private static void createLineFromJsonObject(final JsonObject lineObject, HashMap<String, MetroLine> metroLines) {
+    private static LineDraft readLineFromJsonObject(final JsonReader reader, final String lineName,
+                                                    final Symbols symbols) throws IOException {
         // map to hold the stations, sorts by ascending key value
-        TreeMap<Integer, Station> stationTreeMap = new TreeMap<>();
+        TreeMap<Integer, Station>                 stationTreeMap = new TreeMap<>();
+        HashMap<Station, HashMap<String, String>> transfers      = new HashMap<>();
 
         // iterate through each station, reading its specifications (name, transfer status, etc.)
-        for (var stationEntry : lineObject.entrySet()) {
+        reader.beginObject();
+        while (reader.hasNext()) {
             // get details for the station
-            int     stationNumber = Integer.parseInt(stationEntry.getKey());
-            Station station       = createStation(stationEntry.getValue());
+            int     stationNumber = Integer.parseInt(reader.nextName());
+            Station station       = createStation(reader, lineName, symbols, transfers, null, null);
             stationTreeMap.put(stationNumber, station);
         }
+        reader.endObject();
+
+        return new LineDraft(lineName, transfers, () -> {
+            // update the stations with their previous and next stops
+            stationTreeMap.forEach((key, val) -> {
+                var prevStation = stationTreeMap.get(key - 1);
+                if (prevStation != null) {
+                    val.setPrev(prevStation);
+                }
+
+                var nextStation = stationTreeMap.get(key + 1);
+                if (nextStation != null) {
+                    val.setNext(nextStation);
+                }
+            });
 
-        // update the stations with their previous and next stops
-        stationTreeMap.forEach((key, val) -> {
-            var prevStation = stationTreeMap.get(key - 1);
-            if (prevStation != null) {
-                val.setPrev(new LinkedList<>(List.of(prevStation)));
-            }
-
-            var nextStation = stationTreeMap.get(key + 1);
-            if (nextStation != null) {
-                val.setNext(new LinkedList<>(List.of(nextStation)));
-            }
+            // get the first and last stations and create the line
+            var head = stationTreeMap.firstEntry().getValue();
+            var tail = stationTreeMap.lastEntry().getValue();
+            return new MetroLine(symbols, lineName, head, tail);
         });
-
-        // get the first and last stations and create the line
-        var head = stationTreeMap.firstEntry().getValue();
-        var tail = stationTreeMap.lastEntry().getValue();
-        metroLines.put(lineName, new MetroLine(lineName, head, tail));
     }
 
-    private static void createLineFromJsonArray(final JsonArray lineArray, HashMap<String, MetroLine> metroLines) {
-        LinkedHashMap<String, Station> stationLinkedHashMap = new LinkedHashMap<>();
-        HashMap<String, JsonArray> nextStop = new HashMap<>();
-        HashMap<String, JsonArray> prevStop = new HashMap<>();
-        Station head = null;
-        Station tail = null;
-
-        for (var stationEntry : lineArray) {
-            Station station = createStation(stationEntry);
+    private static LineDraft readLineFromJsonArray(final JsonReader reader, final String lineName,
+                                                   final Symbols symbols) throws IOException {
+        LinkedHashMap<String, Station>            stationLinkedHashMap = new LinkedHashMap<>();
+        HashMap<String, List<String>>             nextStop             = new HashMap<>();
+        HashMap<String, List<String>>             prevStop             = new HashMap<>();
+        HashMap<Station, HashMap<String, String>> transfers            = new HashMap<>();
+        Station                                   head                 = null;
+        Station                                   tail                 = null;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            List<String> nextStops = new ArrayList<>();
+            List<String> prevStops = new ArrayList<>();
+            Station      station   = createStation(reader, lineName, symbols, transfers, nextStops, prevStops);
             stationLinkedHashMap.put(station.getName(), station);
-            nextStop.put(station.getName(), stationEntry.getAsJsonObject().get("next").getAsJsonArray());
-            prevStop.put(station.getName(), stationEntry.getAsJsonObject().get("prev").getAsJsonArray());
+            nextStop.put(station.getName(), nextStops);
+            prevStop.put(station.getName(), prevStops);
             if (head == null) {
                 head = station;
             }
             tail = station;
         }
+        reader.endArray();
+
+        final Station first = head;
+        final Station last  = tail;
+        return new LineDraft(lineName, transfers, () -> {
+            // the stops can only be linked once all the stations of the line have been read
+            nextStop.forEach((stationName, nextStops) -> {
+                List<Station> next = new ArrayList<>(nextStops.size());
+                nextStops.forEach(name -> next.add(stationLinkedHashMap.get(name)));
+                stationLinkedHashMap.get(stationName).setNext(next);
+            });
 
-        nextStop.forEach((stationName, nextStops) -> {
-            LinkedList<Station> next = new LinkedList<>();
-            nextStops.forEach(name -> next.add(stationLinkedHashMap.get(name.getAsString())));
-            stationLinkedHashMap.get(stationName).setNext(next);
-        });
+            prevStop.forEach((stationName, prevStops) -> {
+                List<Station> prev = new ArrayList<>(prevStops.size());
+                prevStops.forEach(name -> prev.add(stationLinkedHashMap.get(name)));
+                stationLinkedHashMap.get(stationName).setPrev(prev);
+            });
 
-        prevStop.forEach((stationName, prevStops) -> {
-            LinkedList<Station> prev = new LinkedList<>();
-            prevStops.forEach(name -> prev.add(stationLinkedHashMap.get(name.getAsString())));
-            stationLinkedHashMap.get(stationName).setPrev(prev);
+            return new MetroLine(symbols, lineName, first, last, stationLinkedHashMap.values());
         });
-
-        metroLines.put(lineName, new MetroLine(lineName, head, tail, stationLinkedHashMap));
     }
 
     /**
      * Create the Station object from a station entry.
      * <p>
-     * Takes an entry from a line JSON object and creates the Station object from it. We take into account if the entry
+     * Reads an entry from a line JSON object and creates the Station object from it. We take into account if the entry
      * is as simple as the station number with a name only, or a whole JSON object itself with name, transfers, and time
-     * between stations.
+     * between stations. Stations of the array format also list the names of their next and previous stops, which are
+     * collected for linking once the whole line has been read.
      *
-     * @param stationElement
-     *         JSON element of station to create
+     * @param reader
+     *         JSON reader positioned at the station to create
+     * @param lineName
+     *         name of the line the station is on
+     * @param symbols
+     *         symbol table of the network read
+     * @param transfers
+     *         map of the line's transfers to add the station's transfers to
+     * @param nextStops
+     *         list to add the names of the next stops to, or null if the entry doesn't have them
+     * @param prevStops
+     *         list to add the names of the previous stops to, or null if the entry doesn't have them
      *
      * @return Station object
      */
-    private static Station createStation(final JsonElement stationElement) {
+    private static Station createStation(final JsonReader reader, final String lineName, final Symbols symbols,
+                                         final HashMap<Station, HashMap<String, String>> transfers,
+                                         final List<String> nextStops, final List<String> prevStops)
+            throws IOException {
         // the element is only a station number and station name; i.e. ("1": "Hammersmith")
-        if (stationElement.isJsonPrimitive()) {
-            return new Station(stationElement.getAsString(), lineName);
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            return new Station(symbols, reader.nextString(), lineName);
         }
 
-        JsonObject stationDetails = stationElement.getAsJsonObject();
-        String     stationName    = stationDetails.get("name").getAsString();
-        JsonElement timeElement = stationDetails.has("time") ? stationDetails.get("time") : JsonNull.INSTANCE;
-        Station station = timeElement.isJsonNull() ? new Station(stationName, lineName)
-                                        : new Station(stationName, lineName, timeElement.getAsInt());
-        addTransferStations(stationDetails.get("transfer"), station);
+        String                  stationName       = null;
+        Integer                 time              = null;
+        HashMap<String, String> transferLineNames = new HashMap<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name" -> stationName = reader.nextString();
+                case "time" -> time = nextIntOrNull(reader);
+                case "transfer" -> readTransfers(reader, transferLineNames);
+                case "next" -> readStopNames(reader, nextStops);
+                case "prev" -> readStopNames(reader, prevStops);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        Station station = time == null ? new Station(symbols, stationName, lineName)
+                                       : new Station(symbols, stationName, lineName, time);
+        addTransferStations(transferLineNames, station, transfers);
         return station;
     }
 
+    private static Integer nextIntOrNull(final JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextInt();
+    }
+
+    private static void readStopNames(final JsonReader reader, final List<String> stops) throws IOException {
+        if (stops == null) {
+            reader.skipValue();
+            return;
+        }
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            stops.add(reader.nextString());
+        }
+        reader.endArray();
+    }
+
     /**
-     * Add transfer stations (if any) to our map
+     * Read the transfers of a station.
      * <p>
+     * The transfers can be null, a single JSON object or an array of JSON objects, each object naming the line and
+     * station to transfer to.
      *
-     * @param transferElement
-     *         JSON element holding the transfers
-     * @param station
-     *         the station we're processing transfers for
+     * @param reader
+     *         JSON reader positioned at the transfers
+     * @param transferLineNames
+     *         map to add the station name to transfer to, keyed by its line name
      */
-    private static void addTransferStations(final JsonElement transferElement, final Station station) {
-        // the element is null, nothing to process
-        if (transferElement.isJsonNull()) {
-            return;
-        }
+    private static void readTransfers(final JsonReader reader, final HashMap<String, String> transferLineNames)
+            throws IOException {
+        switch (reader.peek()) {
+            // the element is null, nothing to process
+            case NULL -> reader.nextNull();
 
-        HashMap<String, String> transferLineNames = new HashMap<>();
+            // the element is a single JSON object so add it to the transfers map
+            case BEGIN_OBJECT -> readTransfer(reader, transferLineNames);
 
-        // the element is a single JSON object so add it to the transfers map
-        if (transferElement.isJsonObject()) {
-            transferLineNames.put(transferElement.getAsJsonObject().get("line").getAsString(),
-                                  transferElement.getAsJsonObject().get("station").getAsString());
-        }
+            // process all the elements in the array adding them to the transfers map
+            case BEGIN_ARRAY -> {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readTransfer(reader, transferLineNames);
+                }
+                reader.endArray();
+            }
 
-        if (transferElement.isJsonArray()) {
-            JsonArray transferArray = transferElement.getAsJsonArray();
+            default -> throw new IllegalStateException("Expected transfer object or array but was " + reader.peek());
+        }
+    }
 
-            // the array is empty, nothing to process
-            if (transferArray.isEmpty()) {
-                return;
+    private static void readTransfer(final JsonReader reader, final HashMap<String, String> transferLineNames)
+            throws IOException {
+        String line    = null;
+        String station = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "line" -> line = reader.nextString();
+                case "station" -> station = reader.nextString();
+                default -> reader.skipValue();
             }
+        }
+        reader.endObject();
 
-            // process all the elements in the array adding them to the transfers map
-            for (var transfer : transferArray) {
-                transferLineNames.put(transfer.getAsJsonObject().get("line").getAsString(),
-                                      transfer.getAsJsonObject().get("station").getAsString());
-            }
+        transferLineNames.put(line, station);
+    }
+
+    /**
+     * Add transfer stations (if any) to our map
+     * <p>
+     *
+     * @param transferLineNames
+     *         station names to transfer to keyed by their line name
+     * @param station
+     *         the station we're processing transfers for
+     * @param transfers
+     *         map of the line's transfers to add them to
+     */
+    private static void addTransferStations(final HashMap<String, String> transferLineNames, final Station station,
+                                            final HashMap<Station, HashMap<String, String>> transfers) {
+        // nothing to process
+        if (transferLineNames.isEmpty()) {
+            return;
         }
 
         // add any lines to the transfer map
-        var transferFromStation = TRANSFERS.get(station);
+        var transferFromStation = transfers.get(station);
         if (transferFromStation == null) {
-            TRANSFERS.put(station, new HashMap<>(transferLineNames));
+            transfers.put(station, new HashMap<>(transferLineNames));
         } else {
             transferFromStation.putAll(transferLineNames);
         }
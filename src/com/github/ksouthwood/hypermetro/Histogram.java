@@ -0,0 +1,92 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values, such as latencies in nanoseconds or bytes allocated, safe to record into from any
+ * thread.
+ * <p>
+ * Buckets are log-linear like HdrHistogram's: every power of two is split into {@value #SUB_BUCKETS} equal buckets, so
+ * any value is counted within about 6% of its size whatever its magnitude, in a fixed array of under a thousand
+ * counters. Recording a value is a few bit operations and one atomic increment.
+ */
+public class Histogram {
+    private static final int SUB_BITS    = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((Long.SIZE - SUB_BITS + 1) * SUB_BUCKETS);
+    private final LongAdder       count  = new LongAdder();
+    private final LongAdder       total  = new LongAdder();
+    private final LongAccumulator max    = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Count a value.
+     *
+     * @param value
+     *         the value, negative values count as 0
+     */
+    void record(final long value) {
+        long recorded = Math.max(value, 0);
+        counts.incrementAndGet(bucket(recorded));
+        count.increment();
+        total.add(recorded);
+        max.accumulate(recorded);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long values = count.sum();
+        return values == 0 ? 0 : (double) total.sum() / values;
+    }
+
+    /**
+     * Value at a percentile, as the highest value of the bucket it falls into.
+     *
+     * @param percentile
+     *         the percentile, from 0 to 100
+     *
+     * @return the value no more than that percentage of the values are above, 0 if nothing was recorded
+     */
+    long getPercentile(final double percentile) {
+        long values = count.sum();
+        if (values == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * values));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length(); bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(highestValue(bucket), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int  shift   = bucket / SUB_BUCKETS - 1;
+        long sub     = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        long highest = ((sub + 1) << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;   // the top bucket ends past Long.MAX_VALUE
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of station ids keyed by an int priority.
+ * <p>
+ * Each id is held at most once; pushing an id already in the heap with a lower priority moves it up instead of adding
+ * a second entry. Ties are broken by the lower id so searches settle stations in a repeatable order.
+ */
+public class IndexedMinHeap {
+    private final int[] heap;       // ids in heap order
+    private final int[] position;   // position of each id in the heap, -1 if not held
+    private final int[] priority;
+    private       int   size;
+
+    IndexedMinHeap(final int capacity) {
+        heap = new int[capacity];
+        position = new int[capacity];
+        priority = new int[capacity];
+        Arrays.fill(position, -1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add an id to the heap or lower its priority if it's already held.
+     *
+     * @param id
+     *         station id to add
+     * @param key
+     *         priority of the id, lower is popped first
+     */
+    void push(final int id, final int key) {
+        int index = position[id];
+        if (index == -1) {
+            index = size++;
+            heap[index] = id;
+            position[id] = index;
+        } else if (key >= priority[id]) {
+            return;
+        }
+        priority[id] = key;
+        siftUp(index);
+    }
+
+    /**
+     * Look at the id with the lowest priority without removing it.
+     *
+     * @return the id that would be popped next
+     */
+    int peek() {
+        return heap[0];
+    }
+
+    /**
+     * Remove the id with the lowest priority.
+     *
+     * @return the removed id
+     */
+    int pop() {
+        int top = heap[0];
+        position[top] = -1;
+        if (--size > 0) {
+            heap[0] = heap[size];
+            position[heap[0]] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    private boolean less(final int a, final int b) {
+        return priority[a] < priority[b] || (priority[a] == priority[b] && a < b);
+    }
+
+    private void siftUp(int index) {
+        int id = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!less(id, heap[parent])) {
+                break;
+            }
+            move(heap[parent], index);
+            index = parent;
+        }
+        move(id, index);
+    }
+
+    private void siftDown(int index) {
+        int id = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && less(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!less(heap[child], id)) {
+                break;
+            }
+            move(heap[child], index);
+            index = child;
+        }
+        move(id, index);
+    }
+
+    private void move(final int id, final int index) {
+        heap[index] = id;
+        position[id] = index;
+    }
+}
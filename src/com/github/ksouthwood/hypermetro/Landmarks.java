@@ -0,0 +1,246 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Landmark travel times for A* searches with the ALT heuristic.
+ * <p>
+ * A few landmark stations are picked far apart from each other and the fastest travel time from each landmark to every
+ * station, and from every station to each landmark, is computed once per MetroGraph. By the triangle inequality the
+ * travel time between two stations is at least the difference of their times to or from any landmark, which gives
+ * /fastest-route a lower bound of the remaining time that never overestimates, so A* still finds the fastest route.
+ * <p>
+ * Landmarks are off unless the {@value #COUNT_PROPERTY} system property asks for some; every landmark costs two ints
+ * per station and two searches of the whole network when the tables are built. After new links are added the tables
+ * are patched instead, keeping the same landmarks, by searching on only from the stations the new links make faster
+ * to reach.
+ */
+public class Landmarks {
+    static final String COUNT_PROPERTY = "hypermetro.landmarks";
+
+    static final int UNREACHABLE = -1;   // lower bound of a station that can't reach the end at all
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    private final int[]   landmarks;
+    private final int[][] from;   // from[k][id] is the travel time from landmark k to station id
+    private final int[][] to;     // to[k][id] is the travel time from station id to landmark k
+
+    /**
+     * Pick landmarks and compute their travel times.
+     * <p>
+     * The first landmark is the station farthest from station 0, every next one the station farthest from the
+     * landmarks already picked, so stations in parts of the network the others can't reach become landmarks first.
+     *
+     * @param graph
+     *         the network to pick landmarks in
+     * @param count
+     *         number of landmarks to pick, at most one per station
+     */
+    Landmarks(final MetroGraph graph, final int count) {
+        int size = graph.size();
+        landmarks = new int[Math.min(count, size)];
+        from = new int[landmarks.length][];
+        to = new int[landmarks.length][];
+
+        int[] nearest = new int[size];   // time from the closest landmark picked so far
+        Arrays.fill(nearest, INFINITY);
+        int[] seed = landmarks.length > 0 ? travelTimes(graph, 0, true) : null;
+        for (int k = 0; k < landmarks.length; k++) {
+            int[] times = k == 0 ? seed : nearest;
+            int   next  = 0;
+            for (int id = 1; id < size; id++) {
+                if (times[id] > times[next]) {
+                    next = id;
+                }
+            }
+            landmarks[k] = next;
+            from[k] = travelTimes(graph, next, true);
+            for (int id = 0; id < size; id++) {
+                nearest[id] = Math.min(nearest[id], from[k][id]);
+            }
+        }
+
+        IntStream.range(0, landmarks.length).parallel()
+                 .forEach(k -> to[k] = travelTimes(graph, landmarks[k], false));
+    }
+
+    /**
+     * Patch the travel times of earlier landmarks with the links added since.
+     * <p>
+     * New links only ever make travel times shorter, so each table is copied and only lowered where a new link leads
+     * somewhere faster, searching on from there.
+     *
+     * @param graph
+     *         the network now
+     * @param previous
+     *         landmarks of the network before the changes
+     * @param changes
+     *         the changes made since, without removed stations
+     */
+    private Landmarks(final MetroGraph graph, final Landmarks previous, final List<ChangeLog.Change> changes) {
+        landmarks = previous.landmarks;
+        from = new int[landmarks.length][];
+        to = new int[landmarks.length][];
+
+        IntStream.range(0, landmarks.length).parallel().forEach(k -> {
+            from[k] = lowerTravelTimes(graph, previous.from[k], changes, true);
+            to[k] = lowerTravelTimes(graph, previous.to[k], changes, false);
+        });
+    }
+
+    /**
+     * Build the landmarks asked for by the {@value #COUNT_PROPERTY} system property, patching those of an earlier
+     * version of the network when the changes since allow it.
+     *
+     * @param graph
+     *         the network to build the landmarks for
+     * @param previous
+     *         landmarks of an earlier version, null to pick them anew
+     * @param changes
+     *         the changes made since that version, null if they aren't known
+     *
+     * @return the landmarks or null if landmarks are off
+     */
+    static Landmarks build(final MetroGraph graph, final Landmarks previous, final List<ChangeLog.Change> changes) {
+        int count = configuredCount();
+        if (count == 0) {
+            return null;
+        }
+        return previous != null && previous.size() == Math.min(count, graph.size()) && ChangeLog.patchable(changes)
+               ? new Landmarks(graph, previous, changes) : new Landmarks(graph, count);
+    }
+
+    /**
+     * Landmark count asked for by the {@value #COUNT_PROPERTY} system property.
+     *
+     * @return the landmark count, 0 if landmarks are off
+     */
+    static int configuredCount() {
+        return Math.max(Integer.getInteger(COUNT_PROPERTY, 0), 0);
+    }
+
+    int size() {
+        return landmarks.length;
+    }
+
+    /**
+     * Lower bound of the travel time between two stations.
+     *
+     * @param id
+     *         station the route starts at
+     * @param target
+     *         station the route ends at
+     *
+     * @return a time no larger than the fastest route, or {@value #UNREACHABLE} if there is no route at all
+     */
+    int lowerBound(final int id, final int target) {
+        int bound = 0;
+        for (int k = 0; k < landmarks.length; k++) {
+            int fromId     = from[k][id];
+            int fromTarget = from[k][target];
+            if (fromTarget != INFINITY) {
+                if (fromId != INFINITY) {
+                    bound = Math.max(bound, fromTarget - fromId);
+                }
+            } else if (fromId != INFINITY) {
+                // the landmark reaches the station but not the end, so the station can't either
+                return UNREACHABLE;
+            }
+
+            int toId     = to[k][id];
+            int toTarget = to[k][target];
+            if (toTarget != INFINITY) {
+                if (toId == INFINITY) {
+                    // the end reaches the landmark but the station doesn't, so the station can't reach the end
+                    return UNREACHABLE;
+                }
+                bound = Math.max(bound, toId - toTarget);
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Travel times between one station and every other using Dijkstra's algorithm.
+     *
+     * @param graph
+     *         the network to search
+     * @param source
+     *         id of the station to search from
+     * @param forward
+     *         true for the times from the station, false for the times to it
+     *
+     * @return travel time of each station id, Integer.MAX_VALUE where there is no route
+     */
+    static int[] travelTimes(final MetroGraph graph, final int source, final boolean forward) {
+        int            size  = graph.size();
+        int[]          time  = new int[size];
+        IndexedMinHeap queue = new IndexedMinHeap(size);
+
+        Arrays.fill(time, INFINITY);
+        time[source] = 0;
+        queue.push(source, 0);
+        search(graph, time, queue, forward);
+        return time;
+    }
+
+    /**
+     * Lower the travel times between one station and every other for the links added since they were found.
+     *
+     * @param graph
+     *         the network now
+     * @param times
+     *         travel times of the network before the changes, by station id
+     * @param changes
+     *         the changes made since, without removed stations
+     * @param forward
+     *         true for the times from the station, false for the times to it
+     *
+     * @return travel time of each station id of the network now, Integer.MAX_VALUE where there is no route
+     */
+    private static int[] lowerTravelTimes(final MetroGraph graph, final int[] times,
+                                          final List<ChangeLog.Change> changes, final boolean forward) {
+        int[]          time  = Arrays.copyOf(times, graph.size());
+        IndexedMinHeap queue = new IndexedMinHeap(graph.size());
+
+        Arrays.fill(time, times.length, time.length, INFINITY);
+        for (var change : changes) {
+            if (change.kind() != ChangeLog.Kind.ADD_EDGE) {
+                continue;
+            }
+            int source = graph.id(change.station());
+            int target = graph.id(change.other());
+            int weight = graph.linkTime(source, target);
+            int tail   = forward ? source : target;
+            int head   = forward ? target : source;
+            if (weight >= 0 && time[tail] != INFINITY && time[tail] + weight < time[head]) {
+                time[head] = time[tail] + weight;
+                queue.push(head, time[head]);
+            }
+        }
+        search(graph, time, queue, forward);
+        return time;
+    }
+
+    /**
+     * Run Dijkstra's algorithm on from the stations in the queue, lowering the times of the stations they reach.
+     */
+    private static void search(final MetroGraph graph, final int[] time, final IndexedMinHeap queue,
+                               final boolean forward) {
+        while (!queue.isEmpty()) {
+            int node = queue.pop();
+            int end  = forward ? graph.endEdge(node) : graph.endInEdge(node);
+            for (int edge = forward ? graph.firstEdge(node) : graph.firstInEdge(node); edge < end; edge++) {
+                int id      = forward ? graph.target(edge) : graph.source(edge);
+                int arrival = time[node] + (forward ? graph.weight(edge) : graph.inWeight(edge));
+                if (arrival < time[id]) {
+                    time[id] = arrival;
+                    queue.push(id, arrival);
+                }
+            }
+        }
+    }
+}
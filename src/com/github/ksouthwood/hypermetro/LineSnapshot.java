@@ -0,0 +1,107 @@
+package com.github.ksouthwood.hypermetro;
+
+/**
+ * Immutable copy of a metro line, as /output prints it and route commands look up its stations.
+ * <p>
+ * Taken whenever a command changes the line, so readers never follow the links of a station while they are being
+ * changed. The stations themselves are shared with the line; only their names and line names, which never change,
+ * are read through them.
+ */
+public class LineSnapshot {
+    private final String             name;
+    private final Symbols            symbols;     // of the network, shared with the line
+    private final Station[]          stations;    // in line order, shared with the line until it changes
+    private final Station[][]        transfers;   // transfers of each printed station, null for none
+    private final SymbolMap<Station> byName;      // keyed by the symbol of the station name
+
+    /**
+     * Copy the current state of a line.
+     *
+     * @param line
+     *         the line to copy, not changed while it's copied
+     */
+    LineSnapshot(final MetroLine line) {
+        this.name = line.getName();
+        this.symbols = line.getSymbols();
+        this.byName = new SymbolMap<>(line.getStationMap());
+        this.stations = line.getOrder();
+        this.transfers = new Station[stations.length][];
+        for (int index = 0; index < stations.length; index++) {
+            if (stations[index].hasTransfers()) {
+                transfers[index] = stations[index].getTransfers().toArray(new Station[0]);
+            }
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * The stations of the line in order.
+     *
+     * @return the stations, not to be modified
+     */
+    Station[] getStations() {
+        return stations;
+    }
+
+    /**
+     * Output the stations of the line
+     * <p>
+     * Print the stations of the line in order, with depot's at the beginning and end. Each line lists the station name
+     * followed by which line you can transfer to if applicable.
+     *
+     * @param out
+     *         sink to print the stations to
+     */
+    void printStations(final OutputSink out) {
+        printStations(out, 0, stations.length);
+    }
+
+    /**
+     * Output a page of the stations of the line.
+     * <p>
+     * The depots are only printed when the page starts at the first station or ends at the last one, so printing
+     * every page one after the other gives the same output as printing the whole line.
+     *
+     * @param out
+     *         sink to print the stations to
+     * @param from
+     *         index of the first station to print, counting from 0
+     * @param count
+     *         most stations to print
+     */
+    void printStations(final OutputSink out, final int from, final int count) {
+        if (from >= stations.length) { // there are no stations on the page
+            return;
+        }
+
+        int end = (int) Math.min((long) from + count, stations.length);
+        if (from == 0) {
+            out.println("depot");
+        }
+        for (int index = from; index < end; index++) {
+            out.print(stations[index].getName());
+            if (transfers[index] != null) {
+                for (var entry : transfers[index]) {
+                    out.print(" - ").print(entry.getName()).print(" (").print(entry.getLine()).print(')');
+                }
+            }
+            out.println();
+        }
+        if (end == stations.length) {
+            out.println("depot");
+        }
+    }
+
+    Station getStation(final String station, final OutputSink out) {
+        Station found = byName.get(symbols.lookup(station));
+        if (found != null) {
+            return found;
+        }
+
+        out.print("No station ").print(station).print(" on the ").print(name).print(" line.");
+        return null;
+    }
+}
@@ -1,7 +1,9 @@
 package com.github.ksouthwood.hypermetro;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Path;
 
 public class Main {
     public static void main(String[] args) {
@@ -10,6 +12,16 @@ public class Main {
             System.out.println("Please provide a filename to read from.");
             return;
         }
+        // java Main NETWORK --batch QUERIES OUTPUT
+        if (args.length == 4 && args[1].equals("--batch")) {
+            runBatch(args[0], args[2], args[3]);
+            return;
+        }
+        // java Main NETWORK --serve PORT
+        if (args.length == 3 && args[1].equals("--serve")) {
+            runServer(args[0], args[2]);
+            return;
+        }
         if (args.length > 1) {
             System.out.println("Please provide only ONE filename to read from.");
             return;
@@ -18,11 +30,48 @@ public class Main {
     }
 
     static void readFile(final String filename, final BufferedReader reader) {
-        var lines = FileOperations.readJSONFile(filename);
-        if (lines == null) {
+        var network = loadNetwork(filename);
+        if (network == null) {
             return;
         }
-        var controller = new Controller(lines, new CommandParser(reader));
+        var controller = new Controller(network.lines(), network.hierarchy(), new CommandParser(reader),
+                                        new OutputSink(System.out));
         controller.start();
     }
+
+    static void runBatch(final String filename, final String queries, final String output) {
+        var network = loadNetwork(filename);
+        if (network == null) {
+            return;
+        }
+        try {
+            new BatchRunner(network.lines(), network.hierarchy()).run(Path.of(queries), Path.of(output));
+        } catch (IOException e) {
+            System.out.println("Error! Could not run batch: " + e.getMessage());
+        }
+    }
+
+    static void runServer(final String filename, final String port) {
+        var network = loadNetwork(filename);
+        if (network == null) {
+            return;
+        }
+        try (var server = new QueryServer(network.lines(), network.hierarchy(), Integer.parseInt(port))) {
+            System.out.println("Listening on localhost:" + server.getPort());
+            server.run();
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid port: " + port);
+        } catch (IOException e) {
+            System.out.println("Error! Could not run server: " + e.getMessage());
+        }
+    }
+
+    private static SnapshotFile.Contents loadNetwork(final String filename) {
+        // snapshots written by /export are recognised by their header, anything else is read as JSON
+        if (SnapshotFile.isSnapshot(filename)) {
+            return SnapshotFile.load(filename);
+        }
+        var lines = FileOperations.readJSONFile(filename);
+        return lines == null ? null : new SnapshotFile.Contents(lines, null);
+    }
 }
@@ -0,0 +1,263 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms of the commands and counters of the route searches.
+ * <p>
+ * Every command is timed, and route commands are also timed phase by phase: looking the stations up, searching and
+ * printing the route, along with the bytes the thread allocated to answer them. Searches count the stations they
+ * expand, the largest their queue grows and the routes they find, and the route cache counts its hits and misses.
+ * Everything is shown by /stats and published as a JMX MBean.
+ * <p>
+ * Metrics are off unless the {@value #ENABLED_PROPERTY} system property is true. {@link #ENABLED} is a static final,
+ * so when it's false the JIT drops every call and the counting that feeds it, and the hot paths cost nothing extra.
+ */
+public class Metrics implements MetricsMXBean {
+    static final String  ENABLED_PROPERTY = "hypermetro.metrics";
+    static final String  OBJECT_NAME      = "com.github.ksouthwood.hypermetro:type=Metrics";
+    static final boolean ENABLED          = Boolean.getBoolean(ENABLED_PROPERTY);
+
+    private static final Map<String, Histogram> latencies     = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> allocations   = new ConcurrentHashMap<>();
+    private static final LongAdder              searches      = new LongAdder();
+    private static final LongAdder              nodesExpanded = new LongAdder();
+    private static final LongAdder              paths         = new LongAdder();
+    private static final LongAccumulator        queuePeak     = new LongAccumulator(Math::max, 0);
+    private static final LongAdder              cacheHits     = new LongAdder();
+    private static final LongAdder              cacheMisses   = new LongAdder();
+
+    // null when off or the JVM can't measure allocation per thread
+    private static final com.sun.management.ThreadMXBean threads = ENABLED ? allocationCounter() : null;
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                System.err.println("Could not register the metrics MBean: " + e.getMessage());
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Start timing something.
+     *
+     * @return the time to pass to {@link #time(String, long)}, 0 when metrics are off
+     */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the time something took.
+     *
+     * @param name
+     *         the command
+     * @param start
+     *         the time returned by {@link #start()}
+     */
+    static void time(final String name, final long start) {
+        if (ENABLED) {
+            latencies.computeIfAbsent(name, key -> new Histogram()).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record the time a phase of a command took.
+     *
+     * @param name
+     *         the command
+     * @param phase
+     *         the phase of the command
+     * @param start
+     *         the time returned by {@link #start()}
+     */
+    static void time(final String name, final String phase, final long start) {
+        if (ENABLED) {
+            time(name + ' ' + phase, start);
+        }
+    }
+
+    /**
+     * Start measuring what the current thread allocates.
+     *
+     * @return the bytes the thread allocated so far, to pass to {@link #allocated(String, long)}
+     */
+    static long allocated() {
+        return ENABLED && threads != null ? threads.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * Record the bytes the current thread allocated for a command.
+     *
+     * @param name
+     *         the command
+     * @param before
+     *         the count returned by {@link #allocated()}
+     */
+    static void allocated(final String name, final long before) {
+        if (ENABLED && threads != null) {
+            allocations.computeIfAbsent(name, key -> new Histogram())
+                       .record(threads.getCurrentThreadAllocatedBytes() - before);
+        }
+    }
+
+    /**
+     * Count a route search.
+     *
+     * @param expanded
+     *         stations whose edges the search followed
+     * @param peak
+     *         most stations waiting in the search's queue or frontier at once
+     * @param found
+     *         number of routes the search found
+     */
+    static void search(final long expanded, final long peak, final int found) {
+        if (ENABLED) {
+            searches.increment();
+            nodesExpanded.add(expanded);
+            queuePeak.accumulate(peak);
+            paths.add(found);
+        }
+    }
+
+    /**
+     * Count a route cache lookup.
+     *
+     * @param hit
+     *         whether the route was in the cache
+     */
+    static void cacheLookup(final boolean hit) {
+        if (ENABLED) {
+            (hit ? cacheHits : cacheMisses).increment();
+        }
+    }
+
+    /**
+     * Print the metrics collected so far for /stats.
+     *
+     * @param out
+     *         sink to print the metrics to
+     */
+    static void print(final OutputSink out) {
+        if (!ENABLED) {
+            out.print("Metrics are off, run with -D").print(ENABLED_PROPERTY).println("=true to collect them.");
+            return;
+        }
+        out.println(row("Command", "Count", "Mean us", "p50 us", "p90 us", "p99 us", "Max us"));
+        new TreeMap<>(latencies).forEach((name, histogram) -> out.println(row(name, histogram, 1000)));
+        if (!allocations.isEmpty()) {
+            out.println(row("Allocated", "Count", "Mean B", "p50 B", "p90 B", "p99 B", "Max B"));
+            new TreeMap<>(allocations).forEach((name, histogram) -> out.println(row(name, histogram, 1)));
+        }
+        out.print("Searches: ").print(searches.sum())
+           .print(", nodes expanded: ").print(nodesExpanded.sum())
+           .print(", queue peak: ").print(queuePeak.get())
+           .print(", paths enumerated: ").print(paths.sum()).println();
+        out.print("Route cache hits: ").print(cacheHits.sum())
+           .print(", misses: ").print(cacheMisses.sum()).println();
+    }
+
+    private static String row(final String name, final Histogram histogram, final long unit) {
+        return String.format(Locale.ROOT, "%-24s %8d %10.1f %10d %10d %10d %10d", name, histogram.getCount(),
+                             histogram.getMean() / unit, histogram.getPercentile(50) / unit,
+                             histogram.getPercentile(90) / unit, histogram.getPercentile(99) / unit,
+                             histogram.getMax() / unit);
+    }
+
+    private static String row(final String... headings) {
+        return String.format(Locale.ROOT, "%-24s %8s %10s %10s %10s %10s %10s", (Object[]) headings);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean counter
+            && counter.isThreadAllocatedMemorySupported()) {
+            counter.setThreadAllocatedMemoryEnabled(true);
+            return counter;
+        }
+        return null;
+    }
+
+    private static <T> Map<String, T> each(final Map<String, Histogram> histograms,
+                                           final Function<Histogram, T> value) {
+        Map<String, T> values = new TreeMap<>();
+        histograms.forEach((name, histogram) -> values.put(name, value.apply(histogram)));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        return each(latencies, Histogram::getCount);
+    }
+
+    @Override
+    public Map<String, Double> getMeanMicros() {
+        return each(latencies, histogram -> histogram.getMean() / TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    @Override
+    public Map<String, Long> getP99Micros() {
+        return each(latencies, histogram -> TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99)));
+    }
+
+    @Override
+    public Map<String, Double> getMeanBytesAllocated() {
+        return each(allocations, Histogram::getMean);
+    }
+
+    @Override
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    @Override
+    public long getNodesExpanded() {
+        return nodesExpanded.sum();
+    }
+
+    @Override
+    public long getQueuePeak() {
+        return queuePeak.get();
+    }
+
+    @Override
+    public long getPathsEnumerated() {
+        return paths.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public void reset() {
+        latencies.clear();
+        allocations.clear();
+        searches.reset();
+        nodesExpanded.reset();
+        paths.reset();
+        queuePeak.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+    }
+}
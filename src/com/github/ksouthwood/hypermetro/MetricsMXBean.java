@@ -0,0 +1,56 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.Map;
+
+/**
+ * The metrics collected when they are turned on, published over JMX as {@value Metrics#OBJECT_NAME}.
+ * <p>
+ * Timings are keyed by command, with the phases of route commands keyed as the command followed by the phase, e.g.
+ * {@code /fastest-route search}.
+ */
+public interface MetricsMXBean {
+    /**
+     * How often each command or phase was timed.
+     *
+     * @return the count of each command or phase
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * Mean time taken by each command or phase.
+     *
+     * @return the mean in microseconds
+     */
+    Map<String, Double> getMeanMicros();
+
+    /**
+     * Time 99% of each command or phase took at most.
+     *
+     * @return the 99th percentile in microseconds
+     */
+    Map<String, Long> getP99Micros();
+
+    /**
+     * Mean heap allocated while answering each route command, on JVMs that can measure it per thread.
+     *
+     * @return the mean in bytes
+     */
+    Map<String, Double> getMeanBytesAllocated();
+
+    long getSearches();
+
+    long getNodesExpanded();
+
+    long getQueuePeak();
+
+    long getPathsEnumerated();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    /**
+     * Forget everything collected so far.
+     */
+    void reset();
+}
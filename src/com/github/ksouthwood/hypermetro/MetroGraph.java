@@ -0,0 +1,337 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable indexed snapshot of the metro network.
+ * <p>
+ * Every station gets a dense integer id and its links are stored in compressed sparse row form: the edges leaving
+ * station {@code id} are {@code offsets[id]} up to (but not including) {@code offsets[id + 1]}, each with a target
+ * station id, a travel time and whether it's a ride along the line or a transfer. The edges arriving at each station
+ * are stored the same way, so searches can also run backwards from the end of a route without relying on every link
+ * having been listed on both of its stations. Route searches iterate these arrays without allocating. The snapshot
+ * isn't updated when the network changes; a patched copy is made from the {@link ChangeLog} instead. The ids are
+ * kept by the graph rather than the stations, which are shared with every other graph and snapshot of the network, so
+ * building another graph never renumbers the stations of one a search is still running on. A patched copy keeps the
+ * ids of the graph it was patched from, a rebuilt one numbers the stations of the network afresh.
+ */
+public class MetroGraph {
+    static final byte LINE     = 0;
+    static final byte TRANSFER = 1;
+
+    private final Station[]                         stations;
+    private final IdentityHashMap<Station, Integer> ids;   // the id of each station, never changed once built
+    private final Object                            numbering;   // shared by the graphs patched from each other
+    private final int                               removed;     // stations removed since the last rebuild
+    private final int[]                             offsets;
+    private final int[]                             targets;
+    private final int[]                             weights;
+    private final byte[]                            kinds;
+    private final int[]                             inOffsets;   // like offsets, for the edges arriving at each id
+    private final int[]                             sources;
+    private final int[]                             inWeights;
+
+    /**
+     * Index every station of the network.
+     * <p>
+     * Assigns each station a dense integer id, starting with the stations held by the lines and followed by any
+     * station only reachable through a link (e.g. a removed station that is still somebody's transfer), so route
+     * searches can keep their state in plain arrays indexed by station id. The edges of each station keep the order of
+     * {@link Station#getNeighbors()}: transfers, previous stations, then next stations.
+     *
+     * @param lines
+     *         the metro lines making up the network
+     */
+    MetroGraph(final Collection<MetroLine> lines) {
+        this(indexAll(lines), null, Set.of(), 0);
+    }
+
+    /**
+     * Build the edges of indexed stations, copying those of unchanged stations from a previous snapshot.
+     *
+     * @param ids
+     *         the id of each station, taken over by the new snapshot
+     * @param previous
+     *         snapshot to copy edges from, null to build every station's edges
+     * @param changed
+     *         stations whose edges have to be built even though they are in the previous snapshot
+     * @param removed
+     *         stations removed from the network since its stations were last numbered afresh
+     */
+    private MetroGraph(final IdentityHashMap<Station, Integer> ids, final MetroGraph previous,
+                       final Set<Station> changed, final int removed) {
+        this.ids = ids;
+        this.numbering = previous == null ? new Object() : previous.numbering;
+        this.removed = removed;
+        this.stations = new Station[ids.size()];
+        ids.forEach((station, id) -> stations[id] = station);
+        offsets = new int[stations.length + 1];
+
+        int edgeCount = 0;
+        for (int id = 0; id < stations.length; id++) {
+            edgeCount += copies(previous, id, changed) ? previous.endEdge(id) - previous.firstEdge(id)
+                                                       : stations[id].getNeighbors().size();
+        }
+        targets = new int[edgeCount];
+        weights = new int[edgeCount];
+        kinds = new byte[edgeCount];
+
+        int edge = 0;
+        for (int id = 0; id < stations.length; id++) {
+            Station station = stations[id];
+            offsets[id] = edge;
+            if (copies(previous, id, changed)) {
+                int count = previous.endEdge(id) - previous.firstEdge(id);
+                System.arraycopy(previous.targets, previous.firstEdge(id), targets, edge, count);
+                System.arraycopy(previous.weights, previous.firstEdge(id), weights, edge, count);
+                System.arraycopy(previous.kinds, previous.firstEdge(id), kinds, edge, count);
+                edge += count;
+            } else {
+                for (int index = 0; index < station.getTransferCount(); index++) {
+                    edge = addEdge(station, station.getTransfer(index), TRANSFER, edge);
+                }
+                for (int index = 0; index < station.getPrevCount(); index++) {
+                    edge = addEdge(station, station.getPrev(index), LINE, edge);
+                }
+                for (int index = 0; index < station.getNextCount(); index++) {
+                    edge = addEdge(station, station.getNext(index), LINE, edge);
+                }
+            }
+        }
+        offsets[stations.length] = edge;
+
+        inOffsets = new int[stations.length + 1];
+        sources = new int[edgeCount];
+        inWeights = new int[edgeCount];
+        for (int target : targets) {
+            inOffsets[target + 1]++;
+        }
+        for (int id = 0; id < stations.length; id++) {
+            inOffsets[id + 1] += inOffsets[id];
+        }
+        int[] next = Arrays.copyOf(inOffsets, stations.length);
+        for (int id = 0; id < stations.length; id++) {
+            for (int out = offsets[id]; out < offsets[id + 1]; out++) {
+                int in = next[targets[out]]++;
+                sources[in] = id;
+                inWeights[in] = weights[out];
+            }
+        }
+    }
+
+    private static IdentityHashMap<Station, Integer> indexAll(final Collection<MetroLine> lines) {
+        var           ids     = new IdentityHashMap<Station, Integer>();
+        List<Station> indexed = new ArrayList<>();
+
+        for (var line : lines) {
+            for (var station : line.getStations()) {
+                index(station, indexed, ids);
+            }
+        }
+
+        // anything reachable but not held by a line still needs an id
+        for (int id = 0; id < indexed.size(); id++) {
+            for (var neighbor : indexed.get(id).getNeighbors()) {
+                index(neighbor, indexed, ids);
+            }
+        }
+        return ids;
+    }
+
+    private static boolean copies(final MetroGraph previous, final int id, final Set<Station> changed) {
+        return previous != null && id < previous.size() && !changed.contains(previous.getStation(id));
+    }
+
+    /**
+     * Apply changes to the network to a copy of this snapshot.
+     * <p>
+     * Only the edges of the changed stations, the stations linking to them (the time of a ride depends on the next
+     * stops of the station it arrives at) and the stations they now link to are built again; everything else is
+     * copied. Stations keep their ids and new stations get the next free ones. Removed stations keep their id too until
+     * the next {@link #rebuild(Collection)}, they just can't be reached unless something still links to them.
+     *
+     * @param changes
+     *         the changes made since this snapshot was built
+     *
+     * @return the patched snapshot
+     */
+    MetroGraph patch(final List<ChangeLog.Change> changes) {
+        var           patched = new IdentityHashMap<>(ids);
+        List<Station> indexed = new ArrayList<>(Arrays.asList(stations));
+        Set<Station>  changed = new HashSet<>();
+        int           gone    = removed;
+
+        for (var change : changes) {
+            if (change.kind() == ChangeLog.Kind.REMOVE_NODE) {
+                gone++;
+            }
+            touch(change.station(), indexed, patched, changed);
+            if (change.other() != null) {
+                touch(change.other(), indexed, patched, changed);
+            }
+        }
+        // new stations may link to more new stations
+        for (int id = stations.length; id < indexed.size(); id++) {
+            for (var neighbor : indexed.get(id).getNeighbors()) {
+                index(neighbor, indexed, patched);
+            }
+        }
+
+        return new MetroGraph(patched, this, changed, gone);
+    }
+
+    /**
+     * Build every edge of the network again, numbering its stations afresh.
+     * <p>
+     * Cheaper than patching once a lot has changed, and drops the ids of the stations removed since the last rebuild,
+     * so the graph and the tables indexed by its ids only grow with the network. Older snapshots keep the graph, and
+     * so the ids, they were built with.
+     *
+     * @param lines
+     *         the metro lines making up the network now
+     *
+     * @return the rebuilt snapshot
+     */
+    MetroGraph rebuild(final Collection<MetroLine> lines) {
+        return new MetroGraph(indexAll(lines), null, Set.of(), 0);
+    }
+
+    /**
+     * Check whether this graph numbers its stations the way an earlier one did, so tables indexed by the ids of the
+     * earlier graph can be patched for this one.
+     *
+     * @param earlier
+     *         the graph the tables were built for
+     *
+     * @return true if this graph was patched from the earlier one, directly or not, without a rebuild in between
+     */
+    boolean keepsIdsOf(final MetroGraph earlier) {
+        return earlier.numbering == numbering;
+    }
+
+    /**
+     * Check whether so many stations were removed since the last rebuild that a rebuild should drop their ids.
+     *
+     * @return true if removed stations hold more than a quarter of the ids
+     */
+    boolean hasManyRemoved() {
+        return removed > stations.length / 4;
+    }
+
+    private void touch(final Station station, final List<Station> indexed, final IdentityHashMap<Station, Integer> ids,
+                       final Set<Station> changed) {
+        changed.add(station);
+        int id = id(station);
+        if (id >= 0) {
+            for (int edge = firstInEdge(id); edge < endInEdge(id); edge++) {
+                changed.add(stations[source(edge)]);
+            }
+        } else {
+            index(station, indexed, ids);
+        }
+        for (var neighbor : station.getNeighbors()) {
+            index(neighbor, indexed, ids);
+            changed.add(neighbor);
+        }
+    }
+
+    private static void index(final Station station, final List<Station> indexed,
+                              final IdentityHashMap<Station, Integer> ids) {
+        if (ids.putIfAbsent(station, indexed.size()) == null) {
+            indexed.add(station);
+        }
+    }
+
+    private int addEdge(final Station from, final Station to, final byte kind, final int edge) {
+        if (to == null) {
+            return edge;
+        }
+        targets[edge] = ids.get(to);
+        weights[edge] = RouteFinder.travelTime(from, to);
+        kinds[edge] = kind;
+        return edge + 1;
+    }
+
+    int size() {
+        return stations.length;
+    }
+
+    Station getStation(final int id) {
+        return stations[id];
+    }
+
+    /**
+     * Dense integer id of a station in this snapshot.
+     *
+     * @param station
+     *         the station to look up
+     *
+     * @return the station id, or -1 if the station isn't in this snapshot
+     */
+    int id(final Station station) {
+        Integer id = ids.get(station);
+        return id == null ? -1 : id;
+    }
+
+    int firstEdge(final int id) {
+        return offsets[id];
+    }
+
+    int endEdge(final int id) {
+        return offsets[id + 1];
+    }
+
+    int target(final int edge) {
+        return targets[edge];
+    }
+
+    int weight(final int edge) {
+        return weights[edge];
+    }
+
+    byte kind(final int edge) {
+        return kinds[edge];
+    }
+
+    /**
+     * Travel time of the fastest edge between two stations.
+     *
+     * @param from
+     *         id of the station the edge leaves
+     * @param to
+     *         id of the station the edge arrives at
+     *
+     * @return the travel time in minutes, -1 if there is no edge between them
+     */
+    int linkTime(final int from, final int to) {
+        int time = -1;
+        for (int edge = firstEdge(from); edge < endEdge(from); edge++) {
+            if (targets[edge] == to && (time < 0 || weights[edge] < time)) {
+                time = weights[edge];
+            }
+        }
+        return time;
+    }
+
+    int firstInEdge(final int id) {
+        return inOffsets[id];
+    }
+
+    int endInEdge(final int id) {
+        return inOffsets[id + 1];
+    }
+
+    int source(final int inEdge) {
+        return sources[inEdge];
+    }
+
+    int inWeight(final int inEdge) {
+        return inWeights[inEdge];
+    }
+}
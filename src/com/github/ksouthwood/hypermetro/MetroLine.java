@@ -3,115 +3,492 @@ package com.github.ksouthwood.hypermetro;
 import java.util.*;
 
 public class MetroLine {
-    private final String lineName;
+    private final Symbols symbols;   // of the network the line is part of
+    private final String  lineName;
 
     private Station head;
     private Station tail;
 
-    LinkedHashMap<String, Station> stations = new LinkedHashMap<>();
+    private ChangeLog changes;  // where added and removed stations are recorded, null if nobody is interested
 
-    MetroLine(final String lineName, final Station firstStation, final Station lastStation) {
+    private final SymbolMap<Station> stations = new SymbolMap<>();   // keyed by the symbol of the station name
+
+    // the stations in line order, null until first needed, and for each of them the position of the station before
+    // it and the minutes it takes to get there from the head, along the first branch that reaches it
+    private Station[] order;
+    private int[]     parents;
+    private int[]     times;
+    private boolean   linear;    // every station comes right after the one before it in the order
+    private boolean   tree;      // every station but the head has a single station before it, so branches never meet
+
+    // index of each station in the order, kept here rather than on the stations, which every snapshot shares
+    private final IdentityHashMap<Station, Integer> positions = new IdentityHashMap<>();
+
+    MetroLine(final Symbols symbols, final String lineName, final Station firstStation, final Station lastStation) {
+        this.symbols = symbols;
         this.lineName = lineName;
         this.head = firstStation;
         this.tail = lastStation;
 
-        Deque<Station> stationDeque = new ArrayDeque<>();
-        stationDeque.add(head);
-        while (!stationDeque.isEmpty()) {
-            Station current = stationDeque.remove();
-            stations.put(current.getName(), current);
-            if (current.getNext() != null) {
-                stationDeque.addAll(current.getNext());
-            }
+        for (var station : getOrder()) {
+            stations.put(station.getSymbol(), station);
         }
     }
 
-    MetroLine(final String lineName, final Station firstStation, final Station lastStation,
-              final LinkedHashMap<String, Station> stationLinkedHashMap) {
+    MetroLine(final Symbols symbols, final String lineName, final Station firstStation, final Station lastStation,
+              final Collection<Station> lineStations) {
+        this.symbols = symbols;
         this.lineName = lineName;
         this.head = firstStation;
         this.tail = lastStation;
-        this.stations = stationLinkedHashMap;
+        lineStations.forEach(station -> stations.put(station.getSymbol(), station));
+    }
+
+    void addHead(final String stationName, final int time) {
+        if (stationName != null && !stationName.isEmpty()) {
+            Station newStation = new Station(symbols, stationName, lineName, time);
+            newStation.setNext(head);
+            head.setPrev(newStation);
+            recordAdded(newStation, head);
+            indexHead(newStation);
+            head = newStation;
+            stations.put(newStation.getSymbol(), newStation);
+        }
+    }
+
+    void append(final String stationName, final int time) {
+        if (stationName != null && !stationName.isEmpty()) {
+            Station newStation = new Station(symbols, stationName, lineName, time);
+            newStation.setPrev(tail);
+            tail.setNext(newStation);
+            recordAdded(newStation, tail);
+            indexTail(newStation);
+            tail = newStation;
+            stations.put(newStation.getSymbol(), newStation);
+        }
+    }
+
+    void remove(final String stationName) {
+        if (stationName != null && !stationName.isEmpty()) {
+            Station       toRemove = stations.get(symbols.lookup(stationName));
+            List<Station> previous = toRemove.getPrev();
+            List<Station> next     = toRemove.getNext();
+            previous.forEach(station -> station.setNext(next));
+            next.forEach(station -> station.setPrev(previous));
+            if (toRemove == head) {
+                head = next.get(0);
+            }
+            if (toRemove == tail) {
+                tail = previous.get(0);
+            }
+            stations.remove(toRemove.getSymbol());
+            indexRemoved(toRemove);
+            recordRemoved(toRemove, previous, next);
+        }
+    }
+
+    private void recordAdded(final Station station, final Station neighbor) {
+        if (changes != null) {
+            changes.addNode(station);
+            changes.addEdge(station, neighbor);
+            changes.addEdge(neighbor, station);
+        }
+    }
+
+    private void recordRemoved(final Station station, final List<Station> previous, final List<Station> next) {
+        if (changes == null) {
+            return;
+        }
+        changes.removeNode(station);
+        for (var before : previous) {
+            for (var after : next) {
+                changes.addEdge(before, after);
+                changes.addEdge(after, before);
+            }
+        }
+    }
+
+    String getName() {
+        return lineName;
+    }
+
+    Symbols getSymbols() {
+        return symbols;
+    }
+
+    Station getHead() {
+        return head;
+    }
+
+    Station getTail() {
+        return tail;
+    }
+
+    void setChangeLog(final ChangeLog changes) {
+        this.changes = changes;
     }
 
     /**
-     * Output the stations of the line
+     * The stations of the line in order, starting at the head.
      * <p>
-     * Print the stations of the line in order, with depot's at the beginning and end. Each line lists the station name
-     * followed by which line you can transfer to if applicable.
+     * Where a line branches, the branches are listed side by side, a level at a time, and a station where branches
+     * meet again comes once, after the stations of every branch leading to it. The order is worked out once and kept
+     * until the line changes.
+     *
+     * @return the stations in order, not to be modified
      */
-    void printStations() {
-        if (head == null) { // if head is null, there are no stations on the line
-            return;
+    Station[] getOrder() {
+        if (order == null) {
+            index();
         }
+        return order;
+    }
 
-        ArrayDeque<Station> stationDeque = new ArrayDeque<>();
-        stationDeque.add(head);
-        System.out.println("depot");
-        while (!stationDeque.isEmpty()) {
-            Station current = stationDeque.remove();
-            System.out.print(current.getName());
-            if (current.hasTransfers()) {
-                var transfer = current.getTransfers();
-                for (var entry : transfer) {
-                    System.out.printf(" - %s (%s)", entry.getName(), entry.getLine());
+    /**
+     * Time it takes to travel between two stations of the line without leaving it.
+     * <p>
+     * Each station knows how long it takes to get to it from the head, so on a line without branches this is just a
+     * subtraction. On a line that branches, the route goes back to where the branches of the two stations split. Only
+     * when branches meet again, or the line loops, is there more than one way to go, and the line is searched instead.
+     *
+     * @param from
+     *         station to start at
+     * @param to
+     *         station to end at
+     *
+     * @return the travel time in minutes, or -1 if one of the stations can't be reached along the line
+     */
+    int travelTime(final Station from, final Station to) {
+        getOrder();
+        if (!holds(from) || !holds(to)) {
+            return -1;
+        }
+
+        int start = positions.get(from);
+        int end   = positions.get(to);
+        if (linear) {
+            return Math.abs(times[end] - times[start]);
+        }
+        if (!tree) {
+            return search(start, end);
+        }
+        // the station before a station always comes earlier in the order, so walking back from whichever of the two
+        // is later meets where their branches split
+        int split = start;
+        for (int other = end; split != other && split >= 0 && other >= 0; ) {
+            if (split > other) {
+                split = parents[split];
+            } else {
+                other = parents[other];
+            }
+        }
+        return split < 0 ? -1 : times[start] + times[end] - 2 * times[split];
+    }
+
+    /**
+     * Find the fastest way between two stations along the line, going either way past each station.
+     *
+     * @param start
+     *         position of the station to start at
+     * @param end
+     *         position of the station to end at
+     *
+     * @return the travel time in minutes, or -1 if the end can't be reached
+     */
+    private int search(final int start, final int end) {
+        var queue = new IndexedMinHeap(order.length);
+        var best  = new int[order.length];
+        Arrays.fill(best, Integer.MAX_VALUE);
+        best[start] = 0;
+        queue.push(start, 0);
+        while (!queue.isEmpty()) {
+            int position = queue.pop();
+            if (position == end) {
+                return best[end];
+            }
+            // like the edges of the MetroGraph, a stop takes the time of the station it leaves in the line's direction
+            var station = order[position];
+            for (var next : station.getNext()) {
+                if (next != null) {
+                    reach(queue, best, next, best[position] + station.getTime());
                 }
             }
-            System.out.println();
-            if (current.getNext() != null) {
-                stationDeque.addAll(current.getNext());
+            for (var previous : station.getPrev()) {
+                if (previous != null) {
+                    reach(queue, best, previous, best[position] + previous.getTime());
+                }
             }
         }
-        System.out.println("depot");
+        return -1;
     }
 
-    void addHead(final String stationName, final int time) {
-        if (stationName != null && !stationName.isEmpty()) {
-            Station newStation = new Station(stationName, lineName, time);
-            newStation.setNext(new LinkedList<>(List.of(head)));
-            head.setPrev(new LinkedList<>(List.of(newStation)));
-            head = newStation;
-            stations.put(stationName, newStation);
+    private void reach(final IndexedMinHeap queue, final int[] best, final Station station, final int time) {
+        if (!holds(station)) {
+            return;
+        }
+        int position = positions.get(station);
+        if (time < best[position]) {
+            best[position] = time;
+            queue.push(position, time);
         }
     }
 
-    void append(final String stationName, final int time) {
-        if (stationName != null && !stationName.isEmpty()) {
-            Station newStation = new Station(stationName, lineName, time);
-            newStation.setPrev(new LinkedList<>(List.of(tail)));
-            tail.setNext(new LinkedList<>(List.of(newStation)));
-            tail = newStation;
-            stations.put(stationName, newStation);
+    private boolean holds(final Station station) {
+        Integer position = positions.get(station);
+        return position != null && position < order.length && order[position] == station;
+    }
+
+    /**
+     * Work out the order of the stations, where each one is and how long it takes to get there from the head.
+     */
+    private void index() {
+        order = orderStations(head, stations);
+        parents = new int[order.length];
+        times = new int[order.length];
+        positions.clear();
+        for (int position = 0; position < order.length; position++) {
+            positions.put(order[position], position);
         }
+
+        Arrays.fill(parents, -1);
+        int links = 0;
+        linear = true;
+        for (int position = 0; position < order.length; position++) {
+            for (var next : order[position].getNext()) {
+                if (next == null || !holds(next)) {
+                    continue;
+                }
+                int after = positions.get(next);
+                links++;
+                if (after > position && parents[after] < 0) {
+                    parents[after] = position;
+                    times[after] = times[position] + order[position].getTime();
+                }
+            }
+            linear &= parents[position] == position - 1;
+        }
+        // with one link fewer than stations and every station reached, no station is reached twice
+        tree = links == order.length - 1 && Arrays.stream(parents, 1, order.length).allMatch(parent -> parent >= 0);
+        linear &= tree;
     }
 
-    void remove(final String stationName) {
-        if (stationName != null && !stationName.isEmpty()) {
-            Station             toRemove = stations.get(stationName);
-            LinkedList<Station> previous = toRemove.getPrev();
-            LinkedList<Station> next     = toRemove.getNext();
-            if (previous != null) {
-                previous.forEach(station -> station.setNext(next));
+    /**
+     * Patch the index for a station added before the head, shifting every station along by one.
+     *
+     * @param added
+     *         the new head
+     */
+    private void indexHead(final Station added) {
+        if (order == null) {
+            return;
+        }
+        if (!linear) {
+            order = null;   // the times from the head of branches that don't start at the head don't change
+            return;
+        }
+
+        int       length       = order.length + 1;
+        Station[] shifted      = new Station[length];
+        int[]     shiftedTimes = new int[length];
+        shifted[0] = added;
+        System.arraycopy(order, 0, shifted, 1, order.length);
+        for (int position = 1; position < length; position++) {
+            shiftedTimes[position] = times[position - 1] + added.getTime();
+            positions.put(shifted[position], position);
+        }
+        positions.put(added, 0);
+        order = shifted;
+        times = shiftedTimes;
+        parents = linearParents(length);
+    }
+
+    /**
+     * Patch the index for a station added after the tail.
+     *
+     * @param added
+     *         the new tail
+     */
+    private void indexTail(final Station added) {
+        if (order == null) {
+            return;
+        }
+        if (!holds(tail)) {
+            order = null;
+            return;
+        }
+
+        int position = order.length;
+        int before   = positions.get(tail);
+        order = Arrays.copyOf(order, position + 1);
+        parents = Arrays.copyOf(parents, position + 1);
+        times = Arrays.copyOf(times, position + 1);
+        order[position] = added;
+        parents[position] = before;
+        times[position] = times[before] + tail.getTime();
+        positions.put(added, position);
+        linear &= before == position - 1;
+    }
+
+    /**
+     * Patch the index for a removed station. Stations after it no longer travel through it, so they get there sooner
+     * by the time it took to leave it.
+     *
+     * @param removed
+     *         the station taken off the line
+     */
+    private void indexRemoved(final Station removed) {
+        if (order == null) {
+            return;
+        }
+        if (!linear || !holds(removed)) {
+            order = null;
+            return;
+        }
+
+        int       at        = positions.get(removed);
+        int       length    = order.length - 1;
+        Station[] kept      = new Station[length];
+        int[]     keptTimes = new int[length];
+        for (int position = 0; position < length; position++) {
+            int from = position < at ? position : position + 1;
+            kept[position] = order[from];
+            keptTimes[position] = position < at ? times[from] : times[from] - removed.getTime();
+            positions.put(kept[position], position);
+        }
+        positions.remove(removed);
+        order = kept;
+        times = keptTimes;
+        parents = linearParents(length);
+    }
+
+    private static int[] linearParents(final int length) {
+        var parents = new int[length];
+        for (int position = 0; position < length; position++) {
+            parents[position] = position - 1;
+        }
+        return parents;
+    }
+
+    /**
+     * Sort the stations of the line topologically, taking stations in the order a breadth first search reaches them.
+     * <p>
+     * The search starts at the head and at every other station of the line that no station of the line comes before,
+     * so a line whose branches start at different stations keeps all of them. The head comes first, the other first
+     * stations follow in the order the line holds them.
+     *
+     * @param head
+     *         the first station of the line, may be null for an empty line
+     * @param stations
+     *         the stations the line holds, may be empty while the line is still being built from the head
+     *
+     * @return the stations in order
+     */
+    private static Station[] orderStations(final Station head, final SymbolMap<Station> stations) {
+        if (head == null) {
+            return new Station[0];
+        }
+
+        List<Station> heads = new ArrayList<>();
+        heads.add(head);
+        for (var station : stations.values()) {
+            if (station != head && station.getPrev().stream().noneMatch(prev -> isOn(prev, stations))) {
+                heads.add(station);
             }
-            if (next != null) {
-                next.forEach(station -> station.setPrev(previous));
+        }
+
+        // find every station reachable from the heads and how many of them it comes next after, then any station of
+        // the line only on a loop of its own
+        List<Station>                     reached = new ArrayList<>(heads);
+        IdentityHashMap<Station, Integer> waiting = new IdentityHashMap<>();
+        heads.forEach(station -> waiting.put(station, 0));
+        reach(reached, 0, waiting);
+        for (var station : stations.values()) {
+            if (!waiting.containsKey(station)) {
+                reached.add(station);
+                waiting.put(station, 0);
+                reach(reached, reached.size() - 1, waiting);
             }
-            if (toRemove == head) {
-                head = next.get(0);
+        }
+
+        Station[]      ordered = new Station[reached.size()];
+        int            count   = 0;
+        Deque<Station> ready   = new ArrayDeque<>();
+        for (var station : heads) {
+            if (station == head || waiting.get(station) == 0) {
+                ready.add(station);
+                waiting.put(station, -1);
             }
-            if (toRemove == tail) {
-                tail = previous.get(0);
+        }
+        while (!ready.isEmpty()) {
+            Station current = ready.remove();
+            ordered[count++] = current;
+            for (var next : current.getNext()) {
+                if (next != null && waiting.get(next) > 0 && waiting.merge(next, -1, Integer::sum) == 0) {
+                    waiting.put(next, -1);
+                    ready.add(next);
+                }
+            }
+        }
+
+        // stations on a loop wait for each other forever, so they go last, in the order they were reached
+        for (var station : reached) {
+            if (waiting.get(station) >= 0) {
+                ordered[count++] = station;
             }
-            stations.remove(stationName);
         }
+        return ordered;
     }
 
+    /**
+     * Carry on a breadth first search along the next stops from the reached stations starting at an index, counting
+     * for every station how many reached stations it comes next after.
+     */
+    private static void reach(final List<Station> reached, final int from,
+                              final IdentityHashMap<Station, Integer> waiting) {
+        for (int index = from; index < reached.size(); index++) {
+            for (var next : reached.get(index).getNext()) {
+                if (next == null) {
+                    continue;
+                }
+                Integer before = waiting.put(next, waiting.getOrDefault(next, 0) + 1);
+                if (before == null) {
+                    reached.add(next);
+                }
+            }
+        }
+    }
+
+    private static boolean isOn(final Station station, final SymbolMap<Station> stations) {
+        return station != null && stations.get(station.getSymbol()) == station;
+    }
+
+    Collection<Station> getStations() {
+        return stations.values();
+    }
+
+    SymbolMap<Station> getStationMap() {
+        return stations;
+    }
+
+    /**
+     * Look up a station of the line without reporting a missing one.
+     *
+     * @param station
+     *         name of the station
+     *
+     * @return the station or null if the line has no station of that name
+     */
     Station getStation(final String station) {
-        if (stations.containsKey(station)) {
-            return stations.get(station);
+        return stations.get(symbols.lookup(station));
+    }
+
+    Station getStation(final String station, final OutputSink out) {
+        Station found = getStation(station);
+        if (found != null) {
+            return found;
         }
 
-        System.out.printf("No station %s on the %s line.", station, lineName);
+        out.print("No station ").print(station).print(" on the ").print(lineName).print(" line.");
         return null;
     }
 }
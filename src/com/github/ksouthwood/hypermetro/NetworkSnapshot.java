@@ -0,0 +1,192 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable version of the whole network, read by the route commands and /output.
+ * <p>
+ * The controller publishes a new version once the network has changed and something is about to read it. Only the
+ * lines that changed are copied again, the others are shared with the previous version, and the MetroGraph is patched
+ * rather than rebuilt. Landmarks, the all-pairs matrix and the contraction hierarchy, when they are turned on, are only
+ * built by the first route query on a version, on the thread asking, so publishing never waits for them and versions
+ * nobody routes on never build them. Landmarks and the matrix are patched from those of the last version that built
+ * them when the changes since allow it, and the first version takes the contraction hierarchy saved with a snapshot
+ * file it was loaded from. Readers take the current version once per command, so they never wait for a
+ * change or see half of one, and can run on any thread.
+ */
+public class NetworkSnapshot {
+    private final long                    version;   // version of the change log the snapshot was taken at
+    private final Symbols                 symbols;   // of the network, shared by every version
+    private final SymbolMap<LineSnapshot> lines;     // keyed by the symbol of the line name, never changed
+    private final MetroGraph              graph;
+    private volatile RouteFinder          routeFinder;    // built by the first route query on this version
+    private RouteFinder                   previous;       // of an earlier version to patch, until routeFinder is built
+    private List<ChangeLog.Change>        changes;        // made since that version, null to build from scratch
+    private ContractionHierarchy.Saved    saved;          // loaded with the network, until routeFinder is built
+    private final AlternativeRouter       alternativeRouter;
+    private volatile ParetoRouter         paretoRouter;   // built by the first /pareto-route on this version
+    private final RouteCache              routeCache = new RouteCache();   // routes found in this version
+
+    private NetworkSnapshot(final long version, final Symbols symbols, final SymbolMap<LineSnapshot> lines,
+                            final MetroGraph graph, final RouteFinder previous, final List<ChangeLog.Change> changes,
+                            final ContractionHierarchy.Saved saved) {
+        this.version = version;
+        this.symbols = symbols;
+        this.lines = lines;
+        this.graph = graph;
+        this.previous = previous;
+        this.changes = changes;
+        this.saved = saved;
+        this.alternativeRouter = new AlternativeRouter(graph);
+    }
+
+    /**
+     * Take the first version of a network.
+     *
+     * @param symbols
+     *         symbol table of the network
+     * @param lines
+     *         the lines of the network
+     * @param graph
+     *         the graph of the network
+     * @param saved
+     *         contraction hierarchy loaded with the network, null if there is none
+     *
+     * @return version 0 of the network
+     */
+    static NetworkSnapshot of(final Symbols symbols, final Collection<MetroLine> lines, final MetroGraph graph,
+                              final ContractionHierarchy.Saved saved) {
+        var snapshots = new SymbolMap<LineSnapshot>(lines.size());
+        lines.forEach(line -> snapshots.put(symbols.intern(line.getName()), new LineSnapshot(line)));
+        return new NetworkSnapshot(0, symbols, snapshots, graph, null, null, saved);
+    }
+
+    /**
+     * Take the next version of the network, sharing the lines that didn't change.
+     *
+     * @param version
+     *         version of the change log the new snapshot is taken at
+     * @param changed
+     *         the lines changed since this snapshot
+     * @param graph
+     *         the graph of the network now
+     * @param since
+     *         the changes made since this snapshot, null if they are no longer known
+     *
+     * @return the new version
+     */
+    NetworkSnapshot next(final long version, final Collection<MetroLine> changed, final MetroGraph graph,
+                         final List<ChangeLog.Change> since) {
+        var snapshots = new SymbolMap<>(lines);
+        changed.forEach(line -> snapshots.put(symbols.intern(line.getName()), new LineSnapshot(line)));
+
+        // patch this version's tables, or the ones this version would have patched if nobody built them
+        RouteFinder            base;
+        List<ChangeLog.Change> pending;
+        synchronized (this) {
+            base = routeFinder != null ? routeFinder : previous;
+            pending = routeFinder != null ? since : concat(changes, since);
+        }
+        if (!ChangeLog.patchable(pending)) {
+            base = null;
+            pending = null;
+        }
+        return new NetworkSnapshot(version, symbols, snapshots, graph, base, pending, null);
+    }
+
+    private static List<ChangeLog.Change> concat(final List<ChangeLog.Change> first,
+                                                 final List<ChangeLog.Change> second) {
+        if (first == null || second == null) {
+            return null;
+        }
+        var both = new ArrayList<ChangeLog.Change>(first.size() + second.size());
+        both.addAll(first);
+        both.addAll(second);
+        return both;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    MetroGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Get the route finder of this version, building or patching its tables the first time it's asked for. Threads
+     * asking while they are built wait for them rather than building their own.
+     *
+     * @return the RouteFinder of the snapshot
+     */
+    RouteFinder getRouteFinder() {
+        var finder = routeFinder;
+        if (finder == null) {
+            synchronized (this) {
+                finder = routeFinder;
+                if (finder == null) {
+                    finder = RouteFinder.build(graph, previous, changes, saved);
+                    routeFinder = finder;
+                    previous = null;
+                    changes = null;
+                    saved = null;
+                }
+            }
+        }
+        return finder;
+    }
+
+    /**
+     * Find a route in this version, answering from its route cache when the same route was asked for before.
+     *
+     * @param mode
+     *         the route command, /route or /fastest-route
+     * @param start
+     *         Station object to start the search from
+     * @param end
+     *         Station object to end the search at
+     *
+     * @return the route or null if we couldn't find one
+     */
+    Route findRoute(final String mode, final Station start, final Station end) {
+        Route route = routeCache.get(start, end, mode);
+        if (route == null) {
+            route = getRouteFinder().find(mode, start, end);
+            routeCache.put(start, end, mode, route);
+        }
+        return route;
+    }
+
+    AlternativeRouter getAlternativeRouter() {
+        return alternativeRouter;
+    }
+
+    /**
+     * Get the round based router of this version, grouping its stations into lines the first time it's asked for.
+     * Two threads may both build one at first; either will do.
+     *
+     * @return the ParetoRouter of the snapshot
+     */
+    ParetoRouter getParetoRouter() {
+        var router = paretoRouter;
+        if (router == null) {
+            router = new ParetoRouter(graph, lines.values());
+            paretoRouter = router;
+        }
+        return router;
+    }
+
+    /**
+     * Look up a line by name.
+     *
+     * @param lineName
+     *         name of the line
+     *
+     * @return the line or null if there is no line with that name
+     */
+    LineSnapshot getLine(final String lineName) {
+        return lines.get(symbols.lookup(lineName));
+    }
+}
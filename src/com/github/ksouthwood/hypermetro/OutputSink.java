@@ -0,0 +1,87 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.io.PrintStream;
+
+/**
+ * Buffered destination for the output of commands.
+ * <p>
+ * Text is collected in a reusable StringBuilder and written to the target stream in one go when the sink is flushed,
+ * once per command, instead of one synchronized print or printf per station. A sink without a target keeps its text
+ * until it is taken, which is how batch mode collects the answer to each query.
+ */
+public class OutputSink {
+    static final String NEW_LINE = System.lineSeparator();
+
+    private final PrintStream   target;   // null when the text is taken instead of flushed
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    /**
+     * Create a sink that keeps its text until it is taken.
+     */
+    OutputSink() {
+        this(null);
+    }
+
+    /**
+     * Create a sink that writes to a stream when flushed.
+     *
+     * @param target
+     *         stream to write the text to
+     */
+    OutputSink(final PrintStream target) {
+        this.target = target;
+    }
+
+    OutputSink print(final String text) {
+        buffer.append(text);
+        return this;
+    }
+
+    OutputSink print(final char character) {
+        buffer.append(character);
+        return this;
+    }
+
+    OutputSink print(final int number) {
+        buffer.append(number);
+        return this;
+    }
+
+    OutputSink print(final long number) {
+        buffer.append(number);
+        return this;
+    }
+
+    OutputSink println(final String text) {
+        buffer.append(text).append(NEW_LINE);
+        return this;
+    }
+
+    OutputSink println() {
+        buffer.append(NEW_LINE);
+        return this;
+    }
+
+    /**
+     * Write the buffered text to the target stream. Does nothing for a sink without a target.
+     */
+    void flush() {
+        if (target == null || buffer.isEmpty()) {
+            return;
+        }
+        target.append(buffer);
+        target.flush();
+        buffer.setLength(0);
+    }
+
+    /**
+     * Take the buffered text, leaving the sink empty.
+     *
+     * @return the text written since the sink was last flushed or taken
+     */
+    String take() {
+        String text = buffer.toString();
+        buffer.setLength(0);
+        return text;
+    }
+}
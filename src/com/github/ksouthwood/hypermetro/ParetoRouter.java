@@ -0,0 +1,455 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Round based router finding the fastest route for every number of transfers, in the spirit of RAPTOR.
+ * <p>
+ * The stations are grouped into lines, in line order, once per version of the network. Round k rides one line from
+ * every station reached by k - 1 rides, then changes lines at every station the round reached sooner than any round
+ * before it. Each round that reaches the end sooner adds a route to the answer, so the routes go from the fewest
+ * transfers to the fastest, each one faster than the one before and with more transfers: the Pareto set of transfers
+ * and total time. Stations reached no sooner than before, or no sooner than the end already is, are dropped.
+ * <p>
+ * A line without branches is scanned as flat arrays of its stops and of the minutes from its first stop, once towards
+ * each end, keeping the best station to have boarded at so far; other lines are searched within themselves from
+ * every station boarded at. Searches keep their state in arrays reused between queries on the same thread, so a query
+ * only allocates the routes it returns. Routes with more than {@value #MAX_ROUNDS} rides aren't looked for.
+ */
+public class ParetoRouter {
+    static final int MAX_ROUNDS = 12;
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+    private static final int START    = -1;   // parent of the start station
+
+    private static final ThreadLocal<Rounds> scratch = ThreadLocal.withInitial(Rounds::new);
+
+    private final MetroGraph graph;
+    private final int[]      lineOf;        // line of each station id
+    private final int[]      lineOffsets;   // stops of line l are stops[lineOffsets[l]] up to stops[lineOffsets[l + 1]]
+    private final int[]      stops;         // station ids, in line order
+    private final int[]      slot;          // index of each station id in stops
+    private final int[]      times;         // minutes from the first stop of a line without branches to each stop
+    private final boolean[]  straight;      // whether a line has no branches and can be ridden either way
+    private final int        longestLine;
+
+    /**
+     * Group the stations of a network into lines.
+     * <p>
+     * Each line's stops are its stations in the order its snapshot holds them. A station no line holds any more, like
+     * a removed station that is still somebody's transfer, is a line of its own.
+     *
+     * @param graph
+     *         the network to route in
+     * @param lines
+     *         the lines of the same version of the network
+     */
+    ParetoRouter(final MetroGraph graph, final Collection<LineSnapshot> lines) {
+        this.graph = graph;
+        int size = graph.size();
+
+        lineOf = new int[size];
+        stops = new int[size];
+        Arrays.fill(lineOf, -1);
+        int[] offsets = new int[lines.size() + size + 1];
+        int   count   = 0;
+        int   line    = 0;
+        for (var snapshot : lines) {
+            offsets[line] = count;
+            for (var station : snapshot.getStations()) {
+                int id = graph.id(station);
+                if (lineOf[id] < 0) {
+                    stops[count++] = id;
+                    lineOf[id] = line;
+                }
+            }
+            line++;
+        }
+        for (int id = 0; id < size; id++) {
+            if (lineOf[id] < 0) {
+                offsets[line] = count;
+                stops[count++] = id;
+                lineOf[id] = line++;
+            }
+        }
+        offsets[line] = count;
+        lineOffsets = Arrays.copyOf(offsets, line + 1);
+
+        int longest = 0;
+        times = new int[size];
+        straight = new boolean[line];
+        for (int index = 0; index < line; index++) {
+            longest = Math.max(longest, lineOffsets[index + 1] - lineOffsets[index]);
+            straight[index] = isStraight(index);
+        }
+        longestLine = longest;
+        slot = new int[size];
+        for (int index = 0; index < size; index++) {
+            slot[stops[index]] = index;
+        }
+    }
+
+    /**
+     * Check if a line has no branches and every ride on it takes as long both ways, so it can be swept in line order,
+     * and work out the minutes from its first stop to each stop if it does.
+     *
+     * @param line
+     *         the line to check
+     *
+     * @return true if the line can be swept, false if it has to be searched
+     */
+    private boolean isStraight(final int line) {
+        int first = lineOffsets[line];
+        int last  = lineOffsets[line + 1] - 1;
+        for (int index = first; index <= last; index++) {
+            int id = stops[index];
+            for (int edge = graph.firstEdge(id); edge < graph.endEdge(id); edge++) {
+                if (graph.kind(edge) != MetroGraph.LINE) {
+                    continue;
+                }
+                int     target   = graph.target(edge);
+                boolean adjacent = index > first && target == stops[index - 1] ||
+                                   index < last && target == stops[index + 1];
+                if (!adjacent || rideTime(target, id) != graph.weight(edge)) {
+                    return false;
+                }
+            }
+            if (index > first && rideTime(stops[index - 1], id) < 0) {
+                return false;
+            }
+            times[index] = index == first ? 0 : times[index - 1] + rideTime(stops[index - 1], id);
+        }
+        return true;
+    }
+
+    /**
+     * Time of the ride between two stations next to each other on a line.
+     *
+     * @return the travel time in minutes, -1 if there is no ride from one to the other
+     */
+    private int rideTime(final int from, final int to) {
+        for (int edge = graph.firstEdge(from); edge < graph.endEdge(from); edge++) {
+            if (graph.kind(edge) == MetroGraph.LINE && graph.target(edge) == to) {
+                return graph.weight(edge);
+            }
+        }
+        return -1;
+    }
+    /**
+     * Find the fastest route for every number of transfers that is faster than with fewer transfers.
+     *
+     * @param start
+     *         Station object the routes start at
+     * @param end
+     *         Station object the routes end at
+     *
+     * @return the routes from the fewest transfers to the fastest, empty if there is no route
+     */
+    List<Journey> find(final Station start, final Station end) {
+        var journeys = new ArrayList<Journey>();
+        if (start == end) {
+            journeys.add(new Journey(0, new Route(new LinkedList<>(List.of(start)), 0)));
+            return journeys;
+        }
+
+        Rounds rounds  = scratch.get().prepare(graph.size(), straight.length, longestLine);
+        int    source  = graph.id(start);
+        int    target  = graph.id(end);
+        long   scanned = 0;
+        int    peak    = 1;
+        rounds.target = target;
+        rounds.board(source, 0, START, lineOf[source], slot[source]);
+        for (int round = 1; round <= MAX_ROUNDS && rounds.markedCount > 0; round++) {
+            int[] parent = rounds.round(round);
+            int   before = rounds.best[target];
+            if (Metrics.ENABLED) {
+                peak = Math.max(peak, rounds.boardedCount);
+            }
+            for (int index = 0; index < rounds.markedCount; index++) {
+                int line = rounds.markedLines[index];
+                scanned += straight[line] ? sweep(line, parent, rounds) : search(line, parent, rounds);
+            }
+            rounds.clearBoards();
+            if (rounds.best[target] < before) {
+                journeys.add(new Journey(round - 1, route(rounds, round, target)));
+            }
+
+            // change lines at every station reached sooner than before, for the next round to ride from
+            for (int index = 0; index < rounds.improvedCount; index++) {
+                int from = rounds.improved[index];
+                for (int edge = graph.firstEdge(from); edge < graph.endEdge(from); edge++) {
+                    int id      = graph.target(edge);
+                    int arrival = rounds.best[from] + graph.weight(edge);
+                    if (graph.kind(edge) == MetroGraph.TRANSFER && arrival < rounds.best[id] &&
+                        arrival < rounds.best[target] && arrival < rounds.board[id]) {
+                        rounds.board(id, arrival, -(from + 2), lineOf[id], slot[id]);
+                    }
+                }
+            }
+            rounds.improvedCount = 0;
+        }
+        Metrics.search(scanned, peak, journeys.size());
+        rounds.reset();
+        return journeys;
+    }
+
+    /**
+     * Ride a line without branches from every station boarded at, once towards each end. Each ride starts at the
+     * first station boarded at in its direction and stops once it reaches the end no sooner than the end already is
+     * reached, with no station left to board at.
+     *
+     * @return the number of stops scanned
+     */
+    private int sweep(final int line, final int[] parent, final Rounds rounds) {
+        int first   = lineOffsets[line];
+        int lowest  = rounds.lowest[line];
+        int highest = rounds.highest[line];
+        int limit   = rounds.best[rounds.target];   // taken once, so every stop on the way to the end is kept
+
+        // towards the last stop, from the first one boarded at
+        int carry = INFINITY;
+        int from  = START;
+        int index = lowest;
+        for (; index < lineOffsets[line + 1] && (carry < limit || index <= highest); index++) {
+            int id = stops[index];
+            if (carry != INFINITY) {
+                carry += times[index] - times[index - 1];
+                from = stops[index - 1];
+            }
+            if (rounds.board[id] < carry) {
+                carry = rounds.board[id];
+                from = rounds.boardFrom[id];
+            }
+            rounds.sweep[index - first] = carry;
+            rounds.sweepFrom[index - first] = from;
+        }
+        int scanned = index - lowest;
+
+        // towards the first stop, keeping whichever way gets to each stop sooner
+        int ridden = index;
+        carry = INFINITY;
+        for (index = ridden - 1; index >= first && (carry < limit || index >= lowest); index--) {
+            int id = stops[index];
+            if (carry != INFINITY) {
+                carry += times[index + 1] - times[index];
+                from = stops[index + 1];
+            }
+            if (rounds.board[id] < carry) {
+                carry = rounds.board[id];
+                from = rounds.boardFrom[id];
+            }
+            int arrival     = index >= lowest ? rounds.sweep[index - first] : INFINITY;
+            int arrivedFrom = from;
+            if (carry < arrival) {
+                arrival = carry;
+            } else {
+                arrivedFrom = rounds.sweepFrom[index - first];
+            }
+            if (arrival < limit) {
+                parent[id] = arrivedFrom;
+                rounds.arrive(id, arrival);
+            }
+        }
+        return scanned + ridden - 1 - index;
+    }
+
+    /**
+     * Search a line with branches or loops from every station boarded at, like Dijkstra does.
+     *
+     * @return the number of stops settled
+     */
+    private int search(final int line, final int[] parent, final Rounds rounds) {
+        int limit   = rounds.best[rounds.target];
+        int settled = 0;
+        for (int index = lineOffsets[line]; index < lineOffsets[line + 1]; index++) {
+            int id = stops[index];
+            if (rounds.board[id] < limit) {
+                rounds.reach(id, rounds.board[id]);
+                parent[id] = rounds.boardFrom[id];
+            }
+        }
+        while (!rounds.queue.isEmpty()) {
+            int node = rounds.queue.pop();
+            rounds.arrive(node, rounds.time[node]);
+            settled++;
+            for (int edge = graph.firstEdge(node); edge < graph.endEdge(node); edge++) {
+                int id      = graph.target(edge);
+                int arrival = rounds.time[node] + graph.weight(edge);
+                if (graph.kind(edge) == MetroGraph.LINE && arrival < rounds.time[id] && arrival < limit) {
+                    rounds.reach(id, arrival);
+                    parent[id] = node;
+                }
+            }
+        }
+        rounds.clearTimes();
+        return settled;
+    }
+
+    /**
+     * Follow the parents of a round back from the end to the start, going back a round at every transfer.
+     */
+    private Route route(final Rounds rounds, final int round, final int end) {
+        var stations = new LinkedList<Station>();
+        int id       = end;
+        int at       = round;
+        while (true) {
+            stations.addFirst(graph.getStation(id));
+            int from = rounds.parent[at][id];
+            if (from == START) {
+                break;
+            }
+            if (from >= 0) {
+                id = from;
+            } else {
+                id = -(from + 2);
+                at--;
+            }
+        }
+        return new Route(stations, rounds.best[end]);
+    }
+
+    /**
+     * One of the routes found by {@link #find(Station, Station)}.
+     *
+     * @param transfers
+     *         number of times the route changes lines
+     * @param route
+     *         the route and its total time
+     */
+    record Journey(int transfers, Route route) {
+    }
+
+    /**
+     * Scratch space of the searches, kept per thread and cleared after each query, so only what a query touched is
+     * reset. Parents aren't cleared at all, as a query only follows the ones it wrote itself.
+     */
+    private static final class Rounds {
+        private final int[][]        parent        = new int[MAX_ROUNDS + 1][];   // parent of each station per round
+        private       int[]          best          = new int[0];    // earliest arrival in any round, INFINITY if none
+        private       int[]          board         = new int[0];    // time each station is boarded at this round
+        private       int[]          boardFrom     = new int[0];    // START, or -(station + 2) changed lines from
+        private       int[]          time          = new int[0];    // arrivals of the line being searched
+        private       boolean[]      marked        = new boolean[0];
+        private       int[]          lowest        = new int[0];    // first and last stop boarded at on each line
+        private       int[]          highest       = new int[0];
+        private       int[]          sweep         = new int[0];    // arrivals riding towards the last stop
+        private       int[]          sweepFrom     = new int[0];
+        private       int[]          reached       = new int[16];   // stations with a best arrival, to reset them
+        private       int            reachedCount;
+        private       int[]          boarded       = new int[16];
+        private       int            boardedCount;
+        private       int[]          markedLines   = new int[16];
+        private       int            markedCount;
+        private       int[]          improved      = new int[16];   // stations reached sooner this round
+        private       int            improvedCount;
+        private       int[]          searched      = new int[16];   // stations with a time on the line searched
+        private       int            searchedCount;
+        private       IndexedMinHeap queue         = new IndexedMinHeap(0);
+        private       int            capacity;
+        private       int            target;
+
+        Rounds prepare(final int size, final int lines, final int longestLine) {
+            if (capacity < size) {
+                capacity = size;
+                best = new int[size];
+                board = new int[size];
+                boardFrom = new int[size];
+                time = new int[size];
+                Arrays.fill(best, INFINITY);
+                Arrays.fill(board, INFINITY);
+                Arrays.fill(time, INFINITY);
+                Arrays.fill(parent, null);
+                queue = new IndexedMinHeap(size);
+            }
+            if (marked.length < lines) {
+                marked = new boolean[lines];
+                lowest = new int[lines];
+                highest = new int[lines];
+            }
+            if (sweep.length < longestLine) {
+                sweep = new int[longestLine];
+                sweepFrom = new int[longestLine];
+            }
+            return this;
+        }
+
+        int[] round(final int round) {
+            if (parent[round] == null) {
+                parent[round] = new int[capacity];
+            }
+            return parent[round];
+        }
+
+        void board(final int id, final int arrival, final int from, final int line, final int slot) {
+            if (board[id] == INFINITY) {
+                boarded = append(boarded, boardedCount++, id);
+            }
+            board[id] = arrival;
+            boardFrom[id] = from;
+            if (!marked[line]) {
+                marked[line] = true;
+                markedLines = append(markedLines, markedCount++, line);
+                lowest[line] = slot;
+                highest[line] = slot;
+            } else {
+                lowest[line] = Math.min(lowest[line], slot);
+                highest[line] = Math.max(highest[line], slot);
+            }
+        }
+
+        void arrive(final int id, final int arrival) {
+            if (arrival < best[id]) {
+                if (best[id] == INFINITY) {
+                    reached = append(reached, reachedCount++, id);
+                }
+                best[id] = arrival;
+                improved = append(improved, improvedCount++, id);
+            }
+        }
+
+        void reach(final int id, final int arrival) {
+            if (time[id] == INFINITY) {
+                searched = append(searched, searchedCount++, id);
+            }
+            time[id] = arrival;
+            queue.push(id, arrival);
+        }
+
+        void clearTimes() {
+            for (int index = 0; index < searchedCount; index++) {
+                time[searched[index]] = INFINITY;
+            }
+            searchedCount = 0;
+        }
+
+        void clearBoards() {
+            for (int index = 0; index < boardedCount; index++) {
+                board[boarded[index]] = INFINITY;
+            }
+            for (int index = 0; index < markedCount; index++) {
+                marked[markedLines[index]] = false;
+            }
+            boardedCount = 0;
+            markedCount = 0;
+        }
+
+        void reset() {
+            clearBoards();
+            for (int index = 0; index < reachedCount; index++) {
+                best[reached[index]] = INFINITY;
+            }
+            reachedCount = 0;
+            improvedCount = 0;
+        }
+
+        private static int[] append(final int[] list, final int count, final int value) {
+            int[] grown = count == list.length ? Arrays.copyOf(list, count * 2) : list;
+            grown[count] = value;
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the commands of a network loaded once to any number of clients on localhost.
+ * <p>
+ * Each client sends commands one per line, exactly as typed at the prompt, and gets back the output of each command
+ * followed by an empty line, which is all of the response when a command prints nothing. /exit closes the connection.
+ * <p>
+ * Every client has a thread of its own. The route commands and /output read the latest snapshot of the network and
+ * run in parallel without locking. Commands that may change the network run one at a time and publish a new snapshot
+ * for the queries after them, while queries already running finish on the one they started with.
+ */
+public class QueryServer implements Closeable {
+    private final Controller      controller;
+    private final ServerSocket    server;
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private final Set<Socket>     open    = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Load the network into a controller and listen on a port of the loopback address.
+     *
+     * @param lines
+     *         the lines of the network
+     * @param port
+     *         port to listen on, 0 for any free port
+     *
+     * @throws IOException
+     *         if the port can't be listened on
+     */
+    QueryServer(final HashMap<String, MetroLine> lines, final int port) throws IOException {
+        this(lines, null, port);
+    }
+
+    /**
+     * Load a network along with its contraction hierarchy into a controller and listen on a port of the loopback
+     * address.
+     *
+     * @param lines
+     *         the lines of the network
+     * @param hierarchy
+     *         contraction hierarchy read from the snapshot file with the network, null if there is none
+     * @param port
+     *         port to listen on, 0 for any free port
+     *
+     * @throws IOException
+     *         if the port can't be listened on
+     */
+    QueryServer(final HashMap<String, MetroLine> lines, final ContractionHierarchy.Saved hierarchy, final int port)
+            throws IOException {
+        this.controller = new Controller(lines, hierarchy, null, new OutputSink());
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accept clients until the server is closed.
+     *
+     * @throws IOException
+     *         if accepting a client fails for any other reason than the server being closed
+     */
+    void run() throws IOException {
+        try {
+            while (!server.isClosed()) {
+                Socket client = server.accept();
+                open.add(client);
+                clients.execute(() -> serve(client));
+            }
+        } catch (SocketException e) {
+            if (!server.isClosed()) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stop accepting clients and close the connections of those still connected.
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket client : open) {
+            client.close();
+        }
+        clients.shutdownNow();
+    }
+
+    private void serve(final Socket client) {
+        try (client;
+             var reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             var writer = new PrintStream(new BufferedOutputStream(client.getOutputStream()), false,
+                                          StandardCharsets.UTF_8)) {
+            // the parser flushes after an invalid command, so every flush ends a response
+            var out = new OutputSink(writer) {
+                @Override
+                void flush() {
+                    println();
+                    super.flush();
+                }
+            };
+            var parser  = new CommandParser(reader, out);
+            var running = true;
+            while (running) {
+                running = execute(parser.getCommand(), out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away, or the server is closing
+        } catch (RuntimeException e) {
+            // the parser wraps read errors, anything else is a bug
+            if (!(e.getCause() instanceof IOException)) {
+                throw e;
+            }
+        } finally {
+            open.remove(client);
+        }
+    }
+
+    /**
+     * Run a command for a client, in parallel with other commands or on its own if it may change the network.
+     *
+     * @param command
+     *         Valid command as a list of strings.
+     * @param out
+     *         the client's sink
+     *
+     * @return false if the command was /exit, true otherwise
+     */
+    private boolean execute(final List<String> command, final OutputSink out) {
+        switch (command.get(0)) {
+            case "/exit" -> {
+                return false;
+            }
+            case "/route", "/fastest-route", "/pareto-route", "/alternatives" -> {
+                long started = Metrics.start();
+                var  network = controller.getSnapshot();
+                controller.answerRouteQuery(command, out, network);
+                Metrics.time(command.get(0), started);
+            }
+            case "/output" -> {
+                long started = Metrics.start();
+                controller.printLine(command, out);
+                Metrics.time(command.get(0), started);
+            }
+            case "/stats" -> Metrics.print(out);
+            default -> {
+                synchronized (controller) {
+                    controller.execute(command, out);
+                    controller.publish();
+                }
+            }
+        }
+        return true;
+    }
+}
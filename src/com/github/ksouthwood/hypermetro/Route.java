@@ -0,0 +1,14 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.LinkedList;
+
+/**
+ * A route found between two stations.
+ *
+ * @param stations
+ *         the stations passed on the route, in travel order
+ * @param time
+ *         total travel time of the route in minutes, including any transfers
+ */
+public record Route(LinkedList<Station> stations, int time) {
+}
@@ -0,0 +1,67 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache of found routes.
+ * <p>
+ * Routes are keyed by their start and end station and the command that asked for them. Each {@link NetworkSnapshot}
+ * has a cache of its own, so a route is only ever answered for the version of the network it was found in, and a
+ * change to the network starts the next version with an empty cache. Lookups change the order of the entries, so
+ * every method is synchronized, which lets the command thread, batch workers and server clients share the cache of
+ * the snapshot they read. Hits and misses are counted by {@link Metrics} and shown by /stats.
+ */
+public class RouteCache {
+    static final String SIZE_PROPERTY = "hypermetro.routeCache.size";
+    static final int    DEFAULT_SIZE  = 256;
+
+    private final int                       capacity;
+    private final LinkedHashMap<Key, Route> routes;   // in access order, guarded by this
+
+    private record Key(Station start, Station end, String mode) {
+    }
+
+    RouteCache() {
+        this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+    }
+
+    RouteCache(final int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        this.routes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Route> eldest) {
+                return size() > RouteCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Look up a route.
+     *
+     * @param start
+     *         Station the route starts at
+     * @param end
+     *         Station the route ends at
+     * @param mode
+     *         the command the route was found for
+     *
+     * @return the cached route or null if there is none
+     */
+    synchronized Route get(final Station start, final Station end, final String mode) {
+        Route route = routes.get(new Key(start, end, mode));
+        Metrics.cacheLookup(route != null);
+        return route;
+    }
+
+    synchronized void put(final Station start, final Station end, final String mode, final Route route) {
+        if (capacity == 0 || route == null) {
+            return;
+        }
+        routes.put(new Key(start, end, mode), route);
+    }
+
+    synchronized int size() {
+        return routes.size();
+    }
+}
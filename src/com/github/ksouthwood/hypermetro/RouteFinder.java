@@ -0,0 +1,324 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+
+public class RouteFinder {
+    static final int TRANSFER_TIME = 5;
+
+    private final MetroGraph           graph;
+    private final Landmarks            landmarks;   // null to search without a lower bound
+    private final TravelTimeMatrix     matrix;      // null to search on demand
+    private final ContractionHierarchy hierarchy;   // null to search the whole graph
+
+    RouteFinder(final MetroGraph graph) {
+        this(graph, null, null);
+    }
+
+    RouteFinder(final MetroGraph graph, final Landmarks landmarks) {
+        this(graph, landmarks, null);
+    }
+
+    RouteFinder(final MetroGraph graph, final Landmarks landmarks, final TravelTimeMatrix matrix) {
+        this(graph, landmarks, matrix, null);
+    }
+
+    RouteFinder(final MetroGraph graph, final Landmarks landmarks, final TravelTimeMatrix matrix,
+                final ContractionHierarchy hierarchy) {
+        this.graph = graph;
+        this.landmarks = landmarks;
+        this.matrix = matrix;
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Build a route finder with the tables turned on by their system properties, patching those of an earlier version
+     * of the network where the changes since allow it.
+     *
+     * @param graph
+     *         the network to search
+     * @param previous
+     *         route finder of an earlier version, null to build every table from scratch
+     * @param changes
+     *         the changes made since that version, null if they aren't known
+     * @param saved
+     *         contraction hierarchy saved with the network in a snapshot file, null if there is none
+     *
+     * @return the route finder
+     */
+    static RouteFinder build(final MetroGraph graph, final RouteFinder previous, final List<ChangeLog.Change> changes,
+                             final ContractionHierarchy.Saved saved) {
+        // tables of a graph whose stations were numbered afresh since can't be patched
+        var base = previous != null && graph.keepsIdsOf(previous.graph) ? previous : null;
+        return new RouteFinder(graph,
+                               Landmarks.build(graph, base == null ? null : base.landmarks, changes),
+                               TravelTimeMatrix.build(graph, base == null ? null : base.matrix, changes),
+                               ContractionHierarchy.build(graph, saved));
+    }
+
+    ContractionHierarchy getHierarchy() {
+        return hierarchy;
+    }
+
+    /**
+     * Find a route for a route command.
+     *
+     * @param mode
+     *         the route command, /route for the fewest stops or /fastest-route for the shortest time
+     * @param start
+     *         Station object to start the search from
+     * @param end
+     *         Station object to end the search at
+     *
+     * @return the route with its total time or null if we couldn't find a route
+     */
+    Route find(final String mode, final Station start, final Station end) {
+        return mode.equals("/route") ? shortestRoute(start, end) : fastestRoute(start, end);
+    }
+
+    /**
+     * Find the route with the fewest stops between two stations using bidirectional breadth first search.
+     * <p>
+     * Searches forward from the start and backwards from the end a whole level at a time, always growing the smaller
+     * frontier, until the two meet. On long trips the two searches together visit far fewer stations than one search
+     * from the start would. The route is then rebuilt from the start by always taking the first neighbor, in the order
+     * given by {@link Station#getNeighbors()}, that lies on a shortest route, which gives exactly the route a breadth
+     * first search from the start alone would find.
+     *
+     * @param start
+     *         Station object to start the search from
+     * @param end
+     *         Station object to end the search at
+     *
+     * @return the route with its total time or null if we couldn't find a route
+     */
+    Route shortestRoute(final Station start, final Station end) {
+        if (start == null || end == null) {
+            return null;
+        }
+        if (start == end) {
+            return new Route(new LinkedList<>(List.of(start)), 0);
+        }
+
+        int   size      = graph.size();
+        int   source    = graph.id(start);
+        int   target    = graph.id(end);
+        int[] fromStart = new int[size];   // stops from the start, -1 if not reached yet
+        int[] toEnd     = new int[size];   // stops to the end, -1 if not reached yet
+        int[] forward   = new int[size];   // stations in the order the forward search reached them
+        int[] backward  = new int[size];
+        int   forwardHead  = 0;
+        int   forwardTail  = 0;
+        int   backwardHead = 0;
+        int   backwardTail = 0;
+        int   length       = -1;
+
+        Arrays.fill(fromStart, -1);
+        Arrays.fill(toEnd, -1);
+        forward[forwardTail++] = source;
+        fromStart[source] = 0;
+        backward[backwardTail++] = target;
+        toEnd[target] = 0;
+
+        // once a level reaches the other search, every station where they meet is on a shortest route
+        int peak = 2;
+        while (length < 0 && forwardHead < forwardTail && backwardHead < backwardTail) {
+            if (Metrics.ENABLED) {
+                peak = Math.max(peak, forwardTail - forwardHead + backwardTail - backwardHead);
+            }
+            if (forwardTail - forwardHead <= backwardTail - backwardHead) {
+                for (int levelEnd = forwardTail; forwardHead < levelEnd; forwardHead++) {
+                    int node = forward[forwardHead];
+                    for (int edge = graph.firstEdge(node); edge < graph.endEdge(node); edge++) {
+                        int id = graph.target(edge);
+                        if (fromStart[id] < 0) {
+                            fromStart[id] = fromStart[node] + 1;
+                            forward[forwardTail++] = id;
+                            if (toEnd[id] >= 0) {
+                                length = fromStart[id] + toEnd[id];
+                            }
+                        }
+                    }
+                }
+            } else {
+                for (int levelEnd = backwardTail; backwardHead < levelEnd; backwardHead++) {
+                    int node = backward[backwardHead];
+                    for (int edge = graph.firstInEdge(node); edge < graph.endInEdge(node); edge++) {
+                        int id = graph.source(edge);
+                        if (toEnd[id] < 0) {
+                            toEnd[id] = toEnd[node] + 1;
+                            backward[backwardTail++] = id;
+                            if (fromStart[id] >= 0) {
+                                length = fromStart[id] + toEnd[id];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        Metrics.search(forwardHead + backwardHead, peak, length >= 0 ? 1 : 0);
+        if (length < 0) {
+            return null;
+        }
+
+        // mark the stations on a shortest route, walking back from where the searches met towards either end
+        BitSet onRoute = new BitSet(size);
+        for (int index = forwardTail - 1; index >= 0; index--) {
+            int node = forward[index];
+            if (onRoute.get(node) || toEnd[node] >= 0 && fromStart[node] + toEnd[node] == length) {
+                onRoute.set(node);
+                for (int edge = graph.firstInEdge(node); edge < graph.endInEdge(node); edge++) {
+                    int id = graph.source(edge);
+                    if (fromStart[id] >= 0 && fromStart[id] == fromStart[node] - 1) {
+                        onRoute.set(id);
+                    }
+                }
+            }
+        }
+        for (int index = backwardTail - 1; index >= 0; index--) {
+            int node = backward[index];
+            if (onRoute.get(node) || fromStart[node] >= 0 && fromStart[node] + toEnd[node] == length) {
+                onRoute.set(node);
+                for (int edge = graph.firstEdge(node); edge < graph.endEdge(node); edge++) {
+                    int id = graph.target(edge);
+                    if (toEnd[id] >= 0 && toEnd[id] == toEnd[node] - 1) {
+                        onRoute.set(id);
+                    }
+                }
+            }
+        }
+
+        LinkedList<Station> route = new LinkedList<>();
+        int                 node  = source;
+        int                 time  = 0;
+        route.add(start);
+        for (int stop = 1; stop <= length; stop++) {
+            for (int edge = graph.firstEdge(node); edge < graph.endEdge(node); edge++) {
+                int id = graph.target(edge);
+                if (onRoute.get(id) && (fromStart[id] == stop || toEnd[id] == length - stop)) {
+                    node = id;
+                    time += graph.weight(edge);
+                    break;
+                }
+            }
+            route.add(graph.getStation(node));
+        }
+        return new Route(route, time);
+    }
+
+    /**
+     * Find the fastest route between two stations using Dijkstra's algorithm, or A* when we have landmarks.
+     * <p>
+     * Travel between stations of the same line costs the time of the station the train leaves from in the line's
+     * direction, changing lines costs {@value #TRANSFER_TIME} minutes. With landmarks, stations are taken from the
+     * queue by their time plus the landmark lower bound of the time still to go, which steers the search towards the
+     * end and settles fewer stations. The route is as fast either way, though it can be a different one of several
+     * equally fast routes. When there is a precomputed travel time matrix the route is looked up instead, and when there
+     * is a contraction hierarchy only the stations it ranks above the start and the end are searched.
+     *
+     * @param start
+     *         Station object to start the search from
+     * @param end
+     *         Station object to end the search at
+     *
+     * @return the fastest route with its total time or null if we couldn't find a route
+     */
+    Route fastestRoute(final Station start, final Station end) {
+        if (start == null || end == null) {
+            return null;
+        }
+        if (matrix != null) {
+            return matrix.fastestRoute(start, end);
+        }
+        if (hierarchy != null) {
+            return hierarchy.fastestRoute(start, end);
+        }
+
+        int            size    = graph.size();
+        int            source  = graph.id(start);
+        int            target  = graph.id(end);
+        int[]          time    = new int[size];
+        int[]          parent  = new int[size];
+        BitSet         settled = new BitSet(size);
+        IndexedMinHeap queue   = new IndexedMinHeap(size);
+
+        Arrays.fill(time, Integer.MAX_VALUE);
+        time[source] = 0;
+        parent[source] = -1;
+        queue.push(source, 0);
+
+        int expanded = 0;
+        int peak     = 1;
+        while (!queue.isEmpty()) {
+            int node = queue.pop();
+            if (node == target) {
+                Metrics.search(expanded, peak, 1);
+                return new Route(buildRoute(parent, node), time[node]);
+            }
+            settled.set(node);
+            expanded++;
+
+            for (int edge = graph.firstEdge(node); edge < graph.endEdge(node); edge++) {
+                int id = graph.target(edge);
+                if (settled.get(id)) {
+                    continue;
+                }
+                int arrival = time[node] + graph.weight(edge);
+                if (arrival < time[id]) {
+                    int remaining = landmarks == null ? 0 : landmarks.lowerBound(id, target);
+                    if (remaining == Landmarks.UNREACHABLE) {
+                        continue;
+                    }
+                    time[id] = arrival;
+                    parent[id] = node;
+                    queue.push(id, arrival + remaining);
+                    if (Metrics.ENABLED) {
+                        peak = Math.max(peak, queue.size());
+                    }
+                }
+            }
+        }
+
+        Metrics.search(expanded, peak, 0);
+        return null;
+    }
+
+    /**
+     * Time it takes to travel between two neighboring stations.
+     *
+     * @param from
+     *         station the train leaves from
+     * @param to
+     *         station the train arrives at
+     *
+     * @return the travel time in minutes
+     */
+    static int travelTime(final Station from, final Station to) {
+        // if the line name doesn't match, we do a transfer
+        if (!from.getLine().equals(to.getLine())) {
+            return TRANSFER_TIME;
+        }
+        // a station's time is the time to its next station, so travelling backwards uses the time of the destination
+        return to.hasNextStop(from) ? to.getTime() : from.getTime();
+    }
+
+    /**
+     * Walk the parent links back from the end of a route to its start.
+     *
+     * @param parent
+     *         parent id of each reached station, -1 for the start station
+     * @param end
+     *         id of the station the route ends at
+     *
+     * @return the stations of the route from start to end
+     */
+    private LinkedList<Station> buildRoute(final int[] parent, final int end) {
+        LinkedList<Station> route = new LinkedList<>();
+        for (int node = end; node != -1; node = parent[node]) {
+            route.addFirst(graph.getStation(node));
+        }
+        return route;
+    }
+}
@@ -0,0 +1,301 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary snapshot of a loaded network.
+ * <p>
+ * A snapshot starts with a magic header and a format version, followed by a table of every line and station name
+ * (each stored once), the station records (name, line and time), each line with its head, tail and stations in order,
+ * and the previous, next and transfer stations of every station as station ids. Optional sections follow, each
+ * headed by its kind, the version of its layout and its length in bytes, so a reader skips the ones it doesn't know;
+ * the only one so far holds the contraction hierarchy. Version 1 files have no sections. Loading one only needs a
+ * memory mapped read of the file; no JSON is parsed.
+ */
+public class SnapshotFile {
+    static final int MAGIC   = 0x484D4554;   // "HMET"
+    static final int VERSION = 2;
+
+    static final int HIERARCHY = 1;   // section holding the contraction hierarchy
+
+    /**
+     * What a snapshot file holds.
+     *
+     * @param lines
+     *         Map of line name and corresponding MetroLine object
+     * @param hierarchy
+     *         the contraction hierarchy of the network, null if none was saved
+     */
+    record Contents(HashMap<String, MetroLine> lines, ContractionHierarchy.Saved hierarchy) {
+    }
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Check if a file is a network snapshot.
+     *
+     * @param filename
+     *         String for the filename to check.
+     *
+     * @return true if the file starts with the snapshot magic header, false if it doesn't or can't be read
+     */
+    static boolean isSnapshot(final String filename) {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+            return channel.read(header) == Integer.BYTES && header.getInt(0) == MAGIC;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write a network to a snapshot file.
+     * <p>
+     * Stations are numbered for the file alone: first the stations held by the lines, then any station only reachable
+     * through a link (e.g. a removed station that is still somebody's transfer). Removed stations nothing links to any
+     * more are left out, and the ids the live MetroGraph gave the stations are left alone.
+     *
+     * @param filename
+     *         String for the filename to write to.
+     * @param metroLines
+     *         Map of line name and corresponding MetroLine object to write.
+     * @param hierarchy
+     *         contraction hierarchy of the network as it is now, null to write none
+     *
+     * @throws IOException
+     *         if the file can't be written
+     */
+    static void write(final String filename, final Map<String, MetroLine> metroLines,
+                      final ContractionHierarchy hierarchy) throws IOException {
+        Map<Station, Integer> ids      = new IdentityHashMap<>();
+        List<Station>         stations = new ArrayList<>();
+        for (var line : metroLines.values()) {
+            line.getStations().forEach(station -> number(station, ids, stations));
+        }
+        for (int id = 0; id < stations.size(); id++) {
+            stations.get(id).getNeighbors().forEach(neighbor -> number(neighbor, ids, stations));
+        }
+
+        Map<String, Integer> strings = new LinkedHashMap<>();
+
+        metroLines.keySet().forEach(name -> intern(name, strings));
+        for (var station : stations) {
+            intern(station.getName(), strings);
+            intern(station.getLine(), strings);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // string table
+            out.writeInt(strings.size());
+            for (var string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            // station records
+            out.writeInt(stations.size());
+            for (var station : stations) {
+                out.writeInt(strings.get(station.getName()));
+                out.writeInt(strings.get(station.getLine()));
+                out.writeInt(station.getTime());
+            }
+
+            // lines
+            out.writeInt(metroLines.size());
+            for (var line : metroLines.entrySet()) {
+                MetroLine metroLine = line.getValue();
+                out.writeInt(strings.get(line.getKey()));
+                out.writeInt(stationId(metroLine.getHead(), ids));
+                out.writeInt(stationId(metroLine.getTail(), ids));
+                out.writeInt(metroLine.getStations().size());
+                for (var station : metroLine.getStations()) {
+                    out.writeInt(ids.get(station));
+                }
+            }
+
+            // adjacency
+            for (var station : stations) {
+                writeLinks(out, station.getPrev(), ids);
+                writeLinks(out, station.getNext(), ids);
+                writeLinks(out, station.getTransfers(), ids);
+            }
+
+            if (hierarchy != null) {
+                var section = new ByteArrayOutputStream();
+                if (hierarchy.write(new DataOutputStream(section), stations, ids)) {
+                    out.writeInt(HIERARCHY);
+                    out.writeInt(ContractionHierarchy.FORMAT);
+                    out.writeInt(section.size());
+                    section.writeTo(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a snapshot file.
+     * <p>
+     * Memory maps the snapshot and rebuilds the MetroLine and Station objects it holds. Outputs an error and returns
+     * null if the file isn't a valid snapshot.
+     *
+     * @param filename
+     *         String for the filename to read.
+     *
+     * @return Map of line name and corresponding MetroLine object or null if the file couldn't be read.
+     */
+    static HashMap<String, MetroLine> read(final String filename) {
+        var contents = load(filename);
+        return contents == null ? null : contents.lines();
+    }
+
+    /**
+     * Read a snapshot file along with the sections it holds besides the network.
+     * <p>
+     * Outputs an error and returns null if the file isn't a valid snapshot.
+     *
+     * @param filename
+     *         String for the filename to read.
+     *
+     * @return what the file holds or null if it couldn't be read.
+     */
+    static Contents load(final String filename) {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException |
+                 NegativeArraySizeException e) {
+            System.out.println("File to be read is a malformed snapshot. Please specify a valid snapshot file.");
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Contents read(final ByteBuffer buffer) {
+        int magic   = buffer.getInt();
+        int version = buffer.getInt();
+        if (magic != MAGIC || version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot format");
+        }
+
+        String[] strings = new String[count(buffer, Integer.BYTES)];
+        for (int index = 0; index < strings.length; index++) {
+            byte[] bytes = new byte[count(buffer, 1)];
+            buffer.get(bytes);
+            strings[index] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        Symbols   symbols  = new Symbols();
+        Station[] stations = new Station[count(buffer, 3 * Integer.BYTES)];
+        for (int id = 0; id < stations.length; id++) {
+            String name = strings[buffer.getInt()];
+            String line = strings[buffer.getInt()];
+            stations[id] = new Station(symbols, name, line, buffer.getInt());
+        }
+
+        HashMap<String, MetroLine> metroLines = new HashMap<>();
+        int                        lineCount  = count(buffer, 4 * Integer.BYTES);
+        for (int line = 0; line < lineCount; line++) {
+            String        lineName     = strings[buffer.getInt()];
+            Station       head         = station(stations, buffer.getInt());
+            Station       tail         = station(stations, buffer.getInt());
+            int           count        = count(buffer, Integer.BYTES);
+            List<Station> lineStations = new ArrayList<>(count);
+            for (int index = 0; index < count; index++) {
+                lineStations.add(stations[buffer.getInt()]);
+            }
+            metroLines.put(lineName, new MetroLine(symbols, lineName, head, tail, lineStations));
+        }
+
+        for (var station : stations) {
+            station.setPrev(readLinks(buffer, stations));
+            station.setNext(readLinks(buffer, stations));
+            readLinks(buffer, stations).forEach(station::setTransfers);
+        }
+
+        ContractionHierarchy.Saved hierarchy = null;
+        while (buffer.hasRemaining()) {
+            int kind   = buffer.getInt();
+            int format = buffer.getInt();
+            int length = buffer.getInt();
+            if (kind == HIERARCHY && format == ContractionHierarchy.FORMAT) {
+                hierarchy = new ContractionHierarchy.Saved(buffer.slice(buffer.position(), length), stations);
+            }
+            buffer.position(buffer.position() + length);
+        }
+
+        return new Contents(metroLines, hierarchy);
+    }
+
+    /**
+     * Read the number of entries that follow, checking the rest of the file can hold them before anything is allocated
+     * for them.
+     *
+     * @param buffer
+     *         buffer positioned at the count
+     * @param bytes
+     *         the fewest bytes an entry takes
+     *
+     * @return the number of entries
+     *
+     * @throws IllegalArgumentException
+     *         if the count is negative or more entries than the rest of the file has room for
+     */
+    static int count(final ByteBuffer buffer, final int bytes) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / bytes) {
+            throw new IllegalArgumentException("Snapshot count out of range: " + count);
+        }
+        return count;
+    }
+
+    private static void intern(final String string, final Map<String, Integer> strings) {
+        strings.putIfAbsent(string, strings.size());
+    }
+
+    private static void number(final Station station, final Map<Station, Integer> ids, final List<Station> stations) {
+        if (station != null && ids.putIfAbsent(station, stations.size()) == null) {
+            stations.add(station);
+        }
+    }
+
+    private static int stationId(final Station station, final Map<Station, Integer> ids) {
+        return station == null ? -1 : ids.get(station);
+    }
+
+    private static Station station(final Station[] stations, final int id) {
+        return id == -1 ? null : stations[id];
+    }
+
+    private static void writeLinks(final DataOutputStream out, final List<Station> links,
+                                   final Map<Station, Integer> ids) throws IOException {
+        out.writeInt(links.size());
+        for (var station : links) {
+            out.writeInt(stationId(station, ids));
+        }
+    }
+
+    private static List<Station> readLinks(final ByteBuffer buffer, final Station[] stations) {
+        int           count = count(buffer, Integer.BYTES);
+        List<Station> links = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            links.add(station(stations, buffer.getInt()));
+        }
+        return links;
+    }
+}
@@ -1,68 +1,171 @@
 package com.github.ksouthwood.hypermetro;
 
-import java.util.*;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A station of a metro line.
+ * <p>
+ * Almost every station has at most one previous stop, one next stop and one transfer, so each of them is held in a
+ * plain field and only spills over into an array when a line branches or a station has several transfers. The lists
+ * handed out are read-only views; links change through the setters.
+ */
 public class Station {
+    private static final Station[] NONE = new Station[0];
+
     private final String name;
     private final String line;
+    private final int    symbol;   // id of the name in the symbol table of the network
     private final int    time;
 
-    private LinkedList<Station> prev;
-    private LinkedList<Station> next;
-
-    private final List<Station> transfers = new LinkedList<>();
+    // each link is either the single station in the field or, when there are several or a null entry, the array
+    private Station   prev;
+    private Station[] prevs;
+    private Station   next;
+    private Station[] nexts;
+    private Station   transfer;
+    private Station[] transfers;
 
-    Station(final String name, final String line) {
-        this(name, line, 0);
+    Station(final Symbols symbols, final String name, final String line) {
+        this(symbols, name, line, 0);
     }
 
-    Station(final String name, final String line, final int time) {
-        this.name = name;
-        this.line = line;
+    /**
+     * Create a station, interning its name and the name of its line.
+     *
+     * @param symbols
+     *         symbol table of the network the station is part of
+     * @param name
+     *         name of the station
+     * @param line
+     *         name of the line the station is on
+     * @param time
+     *         minutes it takes to get to the next station
+     */
+    Station(final Symbols symbols, final String name, final String line, final int time) {
+        this.symbol = symbols.intern(name);
+        this.name = symbols.name(symbol);
+        this.line = symbols.name(symbols.intern(line));
         this.time = time;
-        this.next = null;
-        this.prev = null;
     }
 
     String getName() {
         return name;
     }
 
+    int getSymbol() {
+        return symbol;
+    }
+
     void setTransfers(final Station station) {
-        transfers.add(station);
+        if (getTransferCount() == 0 && station != null) {
+            transfer = station;
+            return;
+        }
+        Station[] current = spill(transfer, transfers);
+        transfers = Arrays.copyOf(current, current.length + 1);
+        transfers[current.length] = station;
+        transfer = null;
     }
 
     boolean hasTransfers() {
-        return !transfers.isEmpty();
+        return getTransferCount() > 0;
     }
 
     List<Station> getTransfers() {
-        return transfers;
+        return view(transfer, transfers);
+    }
+
+    int getTransferCount() {
+        return count(transfer, transfers);
+    }
+
+    Station getTransfer(final int index) {
+        return transfers != null ? transfers[index] : transfer;
     }
 
-    void setPrev(final LinkedList<Station> previous) {
+    void setPrev(final Station previous) {
         this.prev = previous;
+        this.prevs = null;
     }
 
-    LinkedList<Station> getPrev() {
-        return prev;
+    void setPrev(final List<Station> previous) {
+        this.prev = single(previous);
+        this.prevs = prev == null ? toArray(previous) : null;
     }
 
-    void setNext(final LinkedList<Station> next) {
+    List<Station> getPrev() {
+        return view(prev, prevs);
+    }
+
+    int getPrevCount() {
+        return count(prev, prevs);
+    }
+
+    Station getPrev(final int index) {
+        return prevs != null ? prevs[index] : prev;
+    }
+
+    void setNext(final Station next) {
         this.next = next;
+        this.nexts = null;
+    }
+
+    void setNext(final List<Station> next) {
+        this.next = single(next);
+        this.nexts = this.next == null ? toArray(next) : null;
+    }
+
+    List<Station> getNext() {
+        return view(next, nexts);
     }
 
-    LinkedList<Station> getNext() {
-        return next;
+    int getNextCount() {
+        return count(next, nexts);
     }
 
-    LinkedList<Station> getNeighbors() {
-        LinkedList<Station> neighbors = new LinkedList<>(transfers);
-        if (prev != null) {
-            neighbors.addAll(prev);
+    Station getNext(final int index) {
+        return nexts != null ? nexts[index] : next;
+    }
+
+    /**
+     * Check if a station is one of our next stops.
+     *
+     * @param station
+     *         the station to look for
+     *
+     * @return true if the station follows this one on the line
+     */
+    boolean hasNextStop(final Station station) {
+        if (nexts == null) {
+            return next != null && next == station;
+        }
+        for (var stop : nexts) {
+            if (stop == station) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * All the stations we link to: transfers, previous stations, then next stations.
+     *
+     * @return the linked stations in that order
+     */
+    List<Station> getNeighbors() {
+        List<Station> neighbors = new ArrayList<>(getTransferCount() + getPrevCount() + getNextCount());
+        for (int index = 0; index < getTransferCount(); index++) {
+            neighbors.add(getTransfer(index));
+        }
+        for (int index = 0; index < getPrevCount(); index++) {
+            neighbors.add(getPrev(index));
         }
-        if (next != null) {
-            neighbors.addAll(next);
+        for (int index = 0; index < getNextCount(); index++) {
+            neighbors.add(getNext(index));
         }
         neighbors.removeIf(Objects::isNull);
         return neighbors;
@@ -75,4 +178,33 @@ public class Station {
     int getTime() {
         return time;
     }
+
+    private static Station single(final List<Station> links) {
+        return links != null && links.size() == 1 ? links.get(0) : null;
+    }
+
+    private static Station[] toArray(final List<Station> links) {
+        return links == null || links.isEmpty() ? NONE : links.toArray(NONE);
+    }
+
+    private static Station[] spill(final Station single, final Station[] many) {
+        if (many != null) {
+            return many;
+        }
+        return single == null ? NONE : new Station[]{single};
+    }
+
+    private static int count(final Station single, final Station[] many) {
+        if (many != null) {
+            return many.length;
+        }
+        return single == null ? 0 : 1;
+    }
+
+    private static List<Station> view(final Station single, final Station[] many) {
+        if (many != null) {
+            return many.length == 0 ? List.of() : Collections.unmodifiableList(Arrays.asList(many));
+        }
+        return single == null ? List.of() : Collections.singletonList(single);
+    }
 }
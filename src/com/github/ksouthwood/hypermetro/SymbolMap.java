@@ -0,0 +1,208 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Map from symbol ids to values that remembers the order the keys were put in.
+ * <p>
+ * An open addressing hash table of int keys, so looking up a station or line by the id of its name needs neither
+ * boxing nor an entry object per mapping. The keys and values live in arrays in insertion order and the hash slots
+ * hold positions in them; removing a key leaves a gap that is squeezed out when the table is next resized.
+ *
+ * @param <V>
+ *         type of the values
+ */
+public class SymbolMap<V> {
+    private static final int REMOVED = -1;   // slot of a removed key, probing continues past it
+
+    private int[]    slots;    // position + 1 of the key hashed to each slot, 0 if empty
+    private int[]    keys;
+    private Object[] values;   // in insertion order, null where a key was removed
+    private int      count;    // positions used, including removed ones
+    private int      size;
+
+    SymbolMap() {
+        this(8);
+    }
+
+    SymbolMap(final int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) * 2;
+        slots = new int[capacity];
+        keys = new int[capacity / 2];
+        values = new Object[capacity / 2];
+    }
+
+    /**
+     * Copy a map, the values are shared.
+     *
+     * @param other
+     *         the map to copy
+     */
+    SymbolMap(final SymbolMap<V> other) {
+        slots = other.slots.clone();
+        keys = other.keys.clone();
+        values = other.values.clone();
+        count = other.count;
+        size = other.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key
+     *         symbol id to look up, may be -1 for a name that was never interned
+     *
+     * @return the value or null if the key isn't in the map
+     */
+    @SuppressWarnings("unchecked")
+    V get(final int key) {
+        if (key < 0) {
+            return null;
+        }
+        int slot = find(key);
+        return slot < 0 ? null : (V) values[slots[slot] - 1];
+    }
+
+    /**
+     * Map a key to a value. A key already in the map keeps its place in the order.
+     *
+     * @param key
+     *         symbol id of the value
+     * @param value
+     *         the value, not null
+     */
+    void put(final int key, final V value) {
+        int slot = find(key);
+        if (slot >= 0) {
+            values[slots[slot] - 1] = value;
+            return;
+        }
+
+        if (count == keys.length) {
+            resize();
+        }
+        int mask = slots.length - 1;
+        slot = Symbols.spread(key) & mask;
+        while (slots[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        keys[count] = key;
+        values[count] = value;
+        slots[slot] = ++count;
+        size++;
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key
+     *         symbol id to remove
+     *
+     * @return the value the key had or null if it wasn't in the map
+     */
+    @SuppressWarnings("unchecked")
+    V remove(final int key) {
+        int slot = key < 0 ? -1 : find(key);
+        if (slot < 0) {
+            return null;
+        }
+        int position = slots[slot] - 1;
+        V   value    = (V) values[position];
+        values[position] = null;
+        slots[slot] = REMOVED;
+        size--;
+        return value;
+    }
+
+    /**
+     * The values in the order their keys were put in.
+     *
+     * @return a read-only view of the values
+     */
+    Collection<V> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new Iterator<>() {
+                    private int position = skipRemoved(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return position < count;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public V next() {
+                        if (position >= count) {
+                            throw new NoSuchElementException();
+                        }
+                        V value = (V) values[position];
+                        position = skipRemoved(position + 1);
+                        return value;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int skipRemoved(int position) {
+        while (position < count && values[position] == null) {
+            position++;
+        }
+        return position;
+    }
+
+    private int find(final int key) {
+        int mask = slots.length - 1;
+        int slot = Symbols.spread(key) & mask;
+        while (slots[slot] != 0) {
+            if (slots[slot] > 0 && keys[slots[slot] - 1] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Squeeze out removed keys and grow the table if it's more than half full.
+     */
+    private void resize() {
+        int capacity = size * 2 >= keys.length ? slots.length * 2 : slots.length;
+        int live     = 0;
+        for (int position = 0; position < count; position++) {
+            if (values[position] != null) {
+                keys[live] = keys[position];
+                values[live++] = values[position];
+            }
+        }
+        keys = Arrays.copyOf(keys, capacity / 2);
+        values = Arrays.copyOf(values, capacity / 2);
+        Arrays.fill(values, live, values.length, null);
+        count = live;
+
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int position = 0; position < count; position++) {
+            int slot = Symbols.spread(keys[position]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = position + 1;
+        }
+    }
+}
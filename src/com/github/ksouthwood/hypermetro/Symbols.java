@@ -0,0 +1,83 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table interning station and line names to dense int ids.
+ * <p>
+ * Every name is held once, however many stations, lines and transfers mention it, and gets the next free id the first
+ * time it's interned. Lines and stations are then looked up by id in {@link SymbolMap}s. Each network loaded has a
+ * table of its own, created by the loader and handed on to its lines, the controller and its snapshots, so the names
+ * of a network are freed with it and networks loaded side by side in one JVM don't share anything. A table is safe to
+ * use from several threads: ids are looked up in a concurrent hash map and names in an array by id that is only
+ * replaced by a bigger copy when it fills up, so neither {@link #lookup(String)} nor {@link #name(int)} take a lock.
+ * Only interning a name that isn't in the table yet does.
+ */
+public class Symbols {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>(1024);
+
+    private volatile String[] names = new String[512];   // by id, written before the id is put in ids
+    private int               size;                      // guarded by this
+
+    Symbols() {
+    }
+
+    /**
+     * Intern a name.
+     *
+     * @param name
+     *         the name to intern
+     *
+     * @return the id of the name, the same for every equal name
+     */
+    int intern(final String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : add(name);
+    }
+
+    private synchronized int add(final String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;      // interned by another thread since we looked
+        }
+
+        String[] current = names;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+            names = current;
+        }
+        current[size] = name;
+        ids.put(name, size);
+        return size++;
+    }
+
+    /**
+     * Look up a name without interning it.
+     *
+     * @param name
+     *         the name to look up
+     *
+     * @return the id of the name or -1 if it was never interned
+     */
+    int lookup(final String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * The interned name of an id.
+     *
+     * @param id
+     *         id returned by {@link #intern(String)}
+     *
+     * @return the name
+     */
+    String name(final int id) {
+        return names[id];
+    }
+
+    static int spread(final int hash) {
+        return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+    }
+}
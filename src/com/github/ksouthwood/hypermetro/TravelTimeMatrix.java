@@ -0,0 +1,204 @@
+package com.github.ksouthwood.hypermetro;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Precomputed fastest travel times between every pair of stations.
+ * <p>
+ * One Dijkstra search per station, run in parallel across the cores, fills a row of travel times and a row of parent
+ * stations, so /fastest-route becomes a lookup plus walking the parents back from the end. Each search breaks ties
+ * exactly like {@link RouteFinder#fastestRoute}, so the routes are the same ones it would find.
+ * <p>
+ * After stations and links are added, the matrix of the version before is patched rather than built again: each row
+ * is copied and only searched on from the stations a new link makes faster to reach, and only new stations get a full
+ * search. The times are the same as a fresh build's; where several routes are equally fast, a patched row keeps the
+ * one it had.
+ * <p>
+ * The matrix takes six bytes per pair of stations. It's only built when the {@value #ENABLED_PROPERTY} system property
+ * is true and the network fits in the budget of the {@value #BUDGET_PROPERTY} property (in bytes, 64 MiB by default,
+ * about 3,300 stations); bigger networks keep searching on demand.
+ */
+public class TravelTimeMatrix {
+    static final String ENABLED_PROPERTY = "hypermetro.allPairs";
+    static final String BUDGET_PROPERTY  = "hypermetro.allPairs.maxBytes";
+    static final long   DEFAULT_BUDGET   = 64L * 1024 * 1024;
+
+    private static final int BYTES_PER_PAIR = Integer.BYTES + Short.BYTES;
+
+    private final MetroGraph graph;
+    private final int        size;
+    private final int[]      times;     // times[from * size + to], Integer.MAX_VALUE if there is no route
+    private final short[]    parents;   // parents[from * size + to] is the station before to, -1 for from itself
+
+    private TravelTimeMatrix(final MetroGraph graph) {
+        this.graph = graph;
+        this.size = graph.size();
+        this.times = new int[size * size];
+        this.parents = new short[size * size];
+        IntStream.range(0, size).parallel().forEach(this::fillRow);
+    }
+
+    private TravelTimeMatrix(final MetroGraph graph, final TravelTimeMatrix previous,
+                             final List<ChangeLog.Change> changes) {
+        this.graph = graph;
+        this.size = graph.size();
+        this.times = new int[size * size];
+        this.parents = new short[size * size];
+        IntStream.range(0, size).parallel().forEach(source -> {
+            if (source < previous.size) {
+                lowerRow(previous, source, changes);
+            } else {
+                fillRow(source);
+            }
+        });
+    }
+
+    /**
+     * Build the matrix for a network if all-pairs mode is on and the network fits in the memory budget.
+     *
+     * @param graph
+     *         the network to build the matrix for
+     *
+     * @return the matrix or null if we search on demand instead
+     */
+    static TravelTimeMatrix build(final MetroGraph graph) {
+        return build(graph, null, null);
+    }
+
+    /**
+     * Build the matrix for a network if all-pairs mode is on and the network fits in the memory budget, patching the
+     * matrix of an earlier version when the changes since allow it.
+     *
+     * @param graph
+     *         the network to build the matrix for
+     * @param previous
+     *         matrix of an earlier version, null to build it from scratch
+     * @param changes
+     *         the changes made since that version, null if they aren't known
+     *
+     * @return the matrix or null if we search on demand instead
+     */
+    static TravelTimeMatrix build(final MetroGraph graph, final TravelTimeMatrix previous,
+                                  final List<ChangeLog.Change> changes) {
+        if (!Boolean.getBoolean(ENABLED_PROPERTY) ||
+            !fits(graph.size(), Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET))) {
+            return null;
+        }
+        return previous != null && ChangeLog.patchable(changes)
+               ? new TravelTimeMatrix(graph, previous, changes) : new TravelTimeMatrix(graph);
+    }
+
+    /**
+     * Check if the matrix of a network fits in a memory budget.
+     *
+     * @param stations
+     *         number of stations of the network
+     * @param budget
+     *         the memory budget in bytes
+     *
+     * @return true if the matrix can be built within the budget
+     */
+    static boolean fits(final int stations, final long budget) {
+        return stations <= Short.MAX_VALUE && (long) stations * stations * BYTES_PER_PAIR <= budget;
+    }
+
+    /**
+     * Look up the fastest route between two stations.
+     *
+     * @param start
+     *         Station object the route starts at
+     * @param end
+     *         Station object the route ends at
+     *
+     * @return the fastest route with its total time or null if there is no route
+     */
+    Route fastestRoute(final Station start, final Station end) {
+        int row    = graph.id(start) * size;
+        int target = graph.id(end);
+        int time   = times[row + target];
+        if (time == Integer.MAX_VALUE) {
+            return null;
+        }
+
+        LinkedList<Station> route = new LinkedList<>();
+        for (int node = target; node != -1; node = parents[row + node]) {
+            route.addFirst(graph.getStation(node));
+        }
+        return new Route(route, time);
+    }
+
+    private void fillRow(final int source) {
+        int            row     = source * size;
+        int[]          time    = new int[size];
+        BitSet         settled = new BitSet(size);
+        IndexedMinHeap queue   = new IndexedMinHeap(size);
+
+        Arrays.fill(time, Integer.MAX_VALUE);
+        time[source] = 0;
+        parents[row + source] = -1;
+        queue.push(source, 0);
+
+        while (!queue.isEmpty()) {
+            int node = queue.pop();
+            settled.set(node);
+
+            for (int edge = graph.firstEdge(node); edge < graph.endEdge(node); edge++) {
+                int id = graph.target(edge);
+                if (settled.get(id)) {
+                    continue;
+                }
+                int arrival = time[node] + graph.weight(edge);
+                if (arrival < time[id]) {
+                    time[id] = arrival;
+                    parents[row + id] = (short) node;
+                    queue.push(id, arrival);
+                }
+            }
+        }
+        System.arraycopy(time, 0, times, row, size);
+    }
+
+    /**
+     * Copy a row of the matrix of the version before and lower the times the new links make shorter.
+     */
+    private void lowerRow(final TravelTimeMatrix previous, final int source, final List<ChangeLog.Change> changes) {
+        int            row   = source * size;
+        int[]          time  = new int[size];
+        IndexedMinHeap queue = new IndexedMinHeap(size);
+
+        System.arraycopy(previous.times, source * previous.size, time, 0, previous.size);
+        System.arraycopy(previous.parents, source * previous.size, parents, row, previous.size);
+        Arrays.fill(time, previous.size, size, Integer.MAX_VALUE);
+        for (var change : changes) {
+            if (change.kind() != ChangeLog.Kind.ADD_EDGE) {
+                continue;
+            }
+            int from   = graph.id(change.station());
+            int to     = graph.id(change.other());
+            int weight = graph.linkTime(from, to);
+            if (weight >= 0 && time[from] != Integer.MAX_VALUE && time[from] + weight < time[to]) {
+                time[to] = time[from] + weight;
+                parents[row + to] = (short) from;
+                queue.push(to, time[to]);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int node = queue.pop();
+            for (int edge = graph.firstEdge(node); edge < graph.endEdge(node); edge++) {
+                int id      = graph.target(edge);
+                int arrival = time[node] + graph.weight(edge);
+                if (arrival < time[id]) {
+                    time[id] = arrival;
+                    parents[row + id] = (short) node;
+                    queue.push(id, arrival);
+                }
+            }
+        }
+        System.arraycopy(time, 0, times, row, size);
+    }
+}
@@ -3,6 +3,7 @@ package com.github.ksouthwood.hypermetro;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -11,8 +12,25 @@ import uk.org.webcompere.systemstubs.jupiter.SystemStubsExtension;
 import uk.org.webcompere.systemstubs.stream.SystemOut;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -39,6 +57,21 @@ class HyperMetroTests {
                      systemOut.getLinesNormalized());
     }
 
+    @Test
+    public void testMissingTransferStationIsReportedOnce(@TempDir Path tempDir) throws IOException {
+        var network = Files.writeString(tempDir.resolve("missing.json"), """
+                {
+                  "A": {"1": {"name": "a1", "transfer": [{"line": "B", "station": "b2"}]}},
+                  "B": {"1": {"name": "b1", "transfer": []}}
+                }
+                """);
+        var lines = FileOperations.readJSONFile(network.toString());
+        assertEquals("No station b2 on the B line.", systemOut.getText());
+
+        assertNull(lines.get("B").getStation("b2"));
+        assertEquals("No station b2 on the B line.", systemOut.getText());
+    }
+
     @Test
     public void testFileDoesNotExist() {
         Main.readFile("test/test_files/invalid.txt", new BufferedReader(new StringReader("")));
@@ -183,6 +216,30 @@ class HyperMetroTests {
                                       Transfer to: Hammersmith-and-City
                                       Baker street
                                       Westbourne-park
+                                      """),
+                         // the repeated route comes from the route cache, the /connect has to invalidate it
+                         Arguments.of("""
+                                      /route Metro-Railway "Edgver road" Hammersmith-and-City Westbourne-park
+                                      /route Metro-Railway "Edgver road" Hammersmith-and-City Westbourne-park
+                                      /connect Hammersmith-and-City Hammersmith Metro-Railway "Edgver road"
+                                      /route Metro-Railway "Edgver road" Hammersmith-and-City Westbourne-park
+                                      /exit
+                                      """,
+                                      """
+                                      Edgver road
+                                      Baker street
+                                      Transfer to: Hammersmith-and-City
+                                      Baker street
+                                      Westbourne-park
+                                      Edgver road
+                                      Baker street
+                                      Transfer to: Hammersmith-and-City
+                                      Baker street
+                                      Westbourne-park
+                                      Edgver road
+                                      Transfer to: Hammersmith-and-City
+                                      Hammersmith
+                                      Westbourne-park
                                       """
         ));
     }
@@ -286,6 +343,814 @@ class HyperMetroTests {
                                       """));
     }
 
+    @Test
+    public void testExportAndReadSnapshot(@TempDir Path tempDir) {
+        var snapshot = tempDir.resolve("prague.hmet").toString();
+        Main.readFile("test/test_files/prague_w_time.json",
+                      new BufferedReader(new StringReader("/export \"" + snapshot + "\"\n/exit\n")));
+        assertTrue(SnapshotFile.isSnapshot(snapshot));
+
+        var reader = new BufferedReader(new StringReader("""
+                                                         /fastest-route "Linka C" Vysehrad "Linka B" "Namesti Republiky"
+                                                         /exit
+                                                         """));
+        Main.readFile(snapshot, reader);
+        //noinspection SpellCheckingInspection
+        assertEquals("""
+                     Vysehrad
+                     I.P.Pavlova
+                     Muzeum
+                     Hlavni nadrazi
+                     Florenc
+                     Transfer to: Linka B
+                     Florenc
+                     Namesti Republiky
+                     Total trip time: 29 minutes.
+                     """, systemOut.getLinesNormalized());
+    }
+
+    @Test
+    public void testExportLeavesOutRemovedStations(@TempDir Path tempDir) throws IOException {
+        var snapshot   = tempDir.resolve("prague.hmet");
+        var lines      = FileOperations.readJSONFile("test/test_files/prague_w_time.json");
+        var controller = new Controller(lines);
+        controller.execute(List.of("/remove", "Linka C", "I.P.Pavlova"));
+        controller.getRouteFinder();   // the graph still holds the removed station
+        controller.execute(List.of("/export", snapshot.toString()));
+
+        var buffer = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+        buffer.position(2 * Integer.BYTES);
+        int strings = buffer.getInt();
+        for (int string = 0; string < strings; string++) {
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+        }
+        assertEquals(lines.values().stream().mapToInt(line -> line.getStations().size()).sum(), buffer.getInt());
+
+        var reloaded = SnapshotFile.read(snapshot.toString());
+        assertNotNull(reloaded);
+        assertNull(reloaded.get("Linka C").getStation("I.P.Pavlova"));
+    }
+
+    @Test
+    public void testHostileSnapshotCountsAreRejected(@TempDir Path tempDir) throws IOException {
+        var snapshot = tempDir.resolve("prague.hmet");
+        new Controller(FileOperations.readJSONFile("test/test_files/prague_w_time.json"))
+                .execute(List.of("/export", snapshot.toString()));
+        byte[] bytes = Files.readAllBytes(snapshot);
+
+        var buffer = ByteBuffer.wrap(bytes);
+        buffer.position(2 * Integer.BYTES);
+        int strings = buffer.getInt();
+        for (int string = 0; string < strings; string++) {
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+        }
+        int stationCount = buffer.position();
+
+        // the count of strings, the length of the first string and the count of stations
+        for (int offset : new int[]{2 * Integer.BYTES, 3 * Integer.BYTES, stationCount}) {
+            for (int count : new int[]{Integer.MAX_VALUE, -1, bytes.length}) {
+                var hostile = ByteBuffer.wrap(bytes.clone()).putInt(offset, count);
+                Files.write(snapshot, hostile.array());
+                systemOut.clear();
+                assertNull(SnapshotFile.read(snapshot.toString()));
+                assertEquals("File to be read is a malformed snapshot. Please specify a valid snapshot file.\n",
+                             systemOut.getLinesNormalized());
+            }
+        }
+
+        Files.write(snapshot, Arrays.copyOf(bytes, bytes.length / 2));
+        systemOut.clear();
+        assertNull(SnapshotFile.read(snapshot.toString()));
+        assertEquals("File to be read is a malformed snapshot. Please specify a valid snapshot file.\n",
+                     systemOut.getLinesNormalized());
+    }
+
+    @Test
+    public void testOutputBranchingLineInPages(@TempDir Path tempDir) throws IOException {
+        var network = Files.writeString(tempDir.resolve("branches.json"), """
+                {
+                  "Red": [
+                    {"name": "A", "prev": [], "next": ["B"], "transfer": [], "time": 2},
+                    {"name": "B", "prev": ["A"], "next": ["C", "D"], "transfer": [], "time": 3},
+                    {"name": "C", "prev": ["B"], "next": ["E"], "transfer": [], "time": 4},
+                    {"name": "D", "prev": ["B"], "next": ["E"], "transfer": [], "time": 1},
+                    {"name": "E", "prev": ["C", "D"], "next": ["F"], "transfer": [], "time": 6},
+                    {"name": "F", "prev": ["E"], "next": [], "transfer": [], "time": null}
+                  ]
+                }
+                """);
+        Main.readFile(network.toString(), new BufferedReader(new StringReader("/output Red\n/exit\n")));
+        var whole = systemOut.getLinesNormalized();
+        assertEquals("""
+                     depot
+                     A
+                     B
+                     C
+                     D
+                     E
+                     F
+                     depot
+                     """, whole);
+        systemOut.clear();
+
+        Main.readFile(network.toString(), new BufferedReader(new StringReader("""
+                                                                              /output Red 1 4
+                                                                              /output Red 5 4
+                                                                              /output Red 9 4
+                                                                              /exit
+                                                                              """)));
+        assertEquals(whole, systemOut.getLinesNormalized());
+    }
+
+    @Test
+    public void testLineWithSeveralHeadsKeepsEveryBranch(@TempDir Path tempDir) throws IOException {
+        var network = Files.writeString(tempDir.resolve("heads.json"), """
+                {
+                  "Red": [
+                    {"name": "A", "prev": [], "next": ["C"], "transfer": [], "time": 2},
+                    {"name": "B", "prev": [], "next": ["C"], "transfer": [], "time": 3},
+                    {"name": "C", "prev": ["A", "B"], "next": ["D"], "transfer": [], "time": 4},
+                    {"name": "D", "prev": ["C"], "next": [], "transfer": [], "time": null}
+                  ]
+                }
+                """);
+        Main.readFile(network.toString(), new BufferedReader(new StringReader("""
+                                                                              /output Red
+                                                                              /time Red B D
+                                                                              /time Red A B
+                                                                              /exit
+                                                                              """)));
+        assertEquals("""
+                     depot
+                     A
+                     B
+                     C
+                     D
+                     depot
+                     Total trip time: 7 minutes.
+                     Total trip time: 5 minutes.
+                     """, systemOut.getLinesNormalized());
+    }
+
+    @Test
+    public void testBatchMatchesSequentialRun(@TempDir Path tempDir) throws IOException {
+        var commands = """
+                       /route "Linka C" Vysehrad "Linka B" "Namesti Republiky"
+                       /fastest-route "Linka C" Vysehrad "Linka B" "Namesti Republiky"
+                       /route "Linka X" Vysehrad "Linka B" "Namesti Republiky"
+                       /remove "Linka C" Muzeum
+                       /fastest-route "Linka C" Vysehrad "Linka B" "Namesti Republiky"
+                       /route "Linka A" Muzeum "Linka C" Florenc
+                       /exit
+                       """;
+        Main.readFile("test/test_files/prague_w_time.json", new BufferedReader(new StringReader(commands)));
+        var sequential = systemOut.getText();
+
+        var queries = Files.writeString(tempDir.resolve("queries.txt"), commands);
+        var output  = tempDir.resolve("output.txt");
+        Main.main(new String[]{"test/test_files/prague_w_time.json", "--batch", queries.toString(), output.toString()});
+        assertEquals(sequential, Files.readString(output));
+    }
+
+    @Test
+    public void testRouteEndsAtStationsTheOtherSearchNeverReached(@TempDir Path tempDir) throws IOException {
+        var network = Files.writeString(tempDir.resolve("transfers.json"), """
+                {
+                  "A": {
+                    "1": {"name": "a1", "transfer": []},
+                    "2": {"name": "a2", "transfer": [{"line": "B", "station": "b1"}, {"line": "C", "station": "c1"}]}
+                  },
+                  "B": {"1": {"name": "b1", "transfer": [{"line": "C", "station": "c1"}]}},
+                  "C": {"1": {"name": "c1", "transfer": [{"line": "B", "station": "b1"}]}}
+                }
+                """);
+        Main.readFile(network.toString(), new BufferedReader(new StringReader("""
+                                                                              /route A a1 C c1
+                                                                              /exit
+                                                                              """)));
+        assertEquals("""
+                     a1
+                     a2
+                     Transfer to: C
+                     c1
+                     """, systemOut.getLinesNormalized());
+    }
+
+    @Test
+    public void testShortestRoutesFollowTheNetworkAfterEdits() {
+        var controller = new Controller(FileOperations.readJSONFile("test/test_files/prague_w_time.json"));
+        controller.execute(List.of("/append", "Linka A", "Test station", "3"));
+        controller.execute(List.of("/connect", "Linka A", "Test station", "Linka C", "Haje"));
+        controller.execute(List.of("/connect", "Linka A", "Test station", "Linka B", "Zlicin"));
+        controller.execute(List.of("/remove", "Linka C", "Muzeum"));
+
+        var finder = controller.getRouteFinder();
+        var graph  = controller.getGraph();
+        for (int start = 0; start < graph.size(); start++) {
+            var stops = stopsFrom(graph.getStation(start));
+            for (int end = 0; end < graph.size(); end++) {
+                var route = finder.shortestRoute(graph.getStation(start), graph.getStation(end));
+                if (!stops.containsKey(graph.getStation(end))) {
+                    assertNull(route);
+                    continue;
+                }
+                var stations = new ArrayList<>(route.stations());
+                assertEquals(graph.getStation(start), stations.get(0));
+                assertEquals(graph.getStation(end), stations.get(stations.size() - 1));
+                assertEquals(stops.get(graph.getStation(end)), stations.size() - 1);
+                for (int index = 1; index < stations.size(); index++) {
+                    assertTrue(stations.get(index - 1).getNeighbors().contains(stations.get(index)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops from a station to every station it reaches, found with a plain breadth first search.
+     */
+    private static Map<Station, Integer> stopsFrom(final Station start) {
+        var stops = new HashMap<Station, Integer>();
+        var queue = new ArrayDeque<Station>();
+        stops.put(start, 0);
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            var station = queue.remove();
+            for (var neighbor : station.getNeighbors()) {
+                if (stops.putIfAbsent(neighbor, stops.get(station) + 1) == null) {
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return stops;
+    }
+
+    @Test
+    public void testLandmarksFindEquallyFastRoutes() {
+        var lines     = FileOperations.readJSONFile("test/test_files/prague_w_time.json");
+        var graph     = new MetroGraph(lines.values());
+        var dijkstra  = new RouteFinder(graph);
+        var landmarks = new RouteFinder(graph, new Landmarks(graph, 4));
+        for (int start = 0; start < graph.size(); start++) {
+            for (int end = 0; end < graph.size(); end++) {
+                var expected = dijkstra.fastestRoute(graph.getStation(start), graph.getStation(end));
+                var actual   = landmarks.fastestRoute(graph.getStation(start), graph.getStation(end));
+                assertEquals(expected == null ? -1 : expected.time(), actual == null ? -1 : actual.time());
+            }
+        }
+    }
+
+    @Test
+    public void testTravelTimeMatrixMatchesSearch() {
+        System.setProperty(TravelTimeMatrix.ENABLED_PROPERTY, "true");
+        try {
+            var lines  = FileOperations.readJSONFile("test/test_files/lausanne.json");
+            var graph  = new MetroGraph(lines.values());
+            var search = new RouteFinder(graph);
+            var lookup = new RouteFinder(graph, null, TravelTimeMatrix.build(graph));
+            for (int start = 0; start < graph.size(); start++) {
+                for (int end = 0; end < graph.size(); end++) {
+                    assertEquals(search.fastestRoute(graph.getStation(start), graph.getStation(end)),
+                                 lookup.fastestRoute(graph.getStation(start), graph.getStation(end)));
+                }
+            }
+            assertFalse(TravelTimeMatrix.fits(10_000, TravelTimeMatrix.DEFAULT_BUDGET));
+        } finally {
+            System.clearProperty(TravelTimeMatrix.ENABLED_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testPatchedTablesMatchSearch() {
+        System.setProperty(Landmarks.COUNT_PROPERTY, "4");
+        try {
+            for (var allPairs : List.of("false", "true")) {
+                System.setProperty(TravelTimeMatrix.ENABLED_PROPERTY, allPairs);
+                var controller = new Controller(FileOperations.readJSONFile("test/test_files/prague_w_time.json"));
+                controller.getRouteFinder();
+                controller.execute(List.of("/append", "Linka A", "Test station", "3"));
+                controller.execute(List.of("/connect", "Linka A", "Test station", "Linka C", "Haje"));
+                controller.publish();   // a version nobody routes on, so the next one patches across both
+                controller.execute(List.of("/add-head", "Linka B", "Other station", "2"));
+                controller.execute(List.of("/connect", "Linka B", "Other station", "Linka A", "Nemocnice Motol"));
+
+                var patched  = controller.getRouteFinder();
+                var graph    = controller.getGraph();
+                var dijkstra = new RouteFinder(graph);
+                for (int start = 0; start < graph.size(); start++) {
+                    for (int end = 0; end < graph.size(); end++) {
+                        var expected = dijkstra.fastestRoute(graph.getStation(start), graph.getStation(end));
+                        var actual   = patched.fastestRoute(graph.getStation(start), graph.getStation(end));
+                        assertEquals(expected == null ? -1 : expected.time(), actual == null ? -1 : actual.time());
+                    }
+                }
+            }
+        } finally {
+            System.clearProperty(Landmarks.COUNT_PROPERTY);
+            System.clearProperty(TravelTimeMatrix.ENABLED_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testRemovedStationsDoNotGrowTheGraph() {
+        System.setProperty(Landmarks.COUNT_PROPERTY, "4");
+        try {
+            var controller = new Controller(FileOperations.readJSONFile("test/test_files/prague_w_time.json"));
+            int size       = controller.getGraph().size();
+            controller.getRouteFinder();
+            for (int round = 0; round < 3 * size; round++) {
+                controller.execute(List.of("/append", "Linka A", "Test station " + round, "3"));
+                controller.getRouteFinder();   // patches the landmarks, or builds them again after a rebuild
+                controller.execute(List.of("/remove", "Linka A", "Test station " + round));
+                controller.getRouteFinder();
+                assertTrue(controller.getGraph().size() <= size + size / 3 + 1);
+            }
+
+            var patched  = controller.getRouteFinder();
+            var graph    = controller.getGraph();
+            var dijkstra = new RouteFinder(graph);
+            for (int start = 0; start < graph.size(); start++) {
+                for (int end = 0; end < graph.size(); end++) {
+                    var expected = dijkstra.fastestRoute(graph.getStation(start), graph.getStation(end));
+                    var actual   = patched.fastestRoute(graph.getStation(start), graph.getStation(end));
+                    assertEquals(expected == null ? -1 : expected.time(), actual == null ? -1 : actual.time());
+                }
+            }
+
+            System.setProperty(ChangeLog.THRESHOLD_PROPERTY, "0");
+            controller.execute(List.of("/append", "Linka A", "Last station", "3"));
+            controller.execute(List.of("/remove", "Linka A", "Last station"));
+            assertEquals(size, controller.getGraph().size());
+        } finally {
+            System.clearProperty(Landmarks.COUNT_PROPERTY);
+            System.clearProperty(ChangeLog.THRESHOLD_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testPatchedGraphMatchesRebuiltGraph() {
+        //noinspection SpellCheckingInspection
+        var commands = """
+                       /route "Linka A" "Nemocnice Motol" "Linka C" Haje
+                       /append "Linka A" "Test station" 3
+                       /connect "Linka A" "Test station" "Linka C" Haje
+                       /remove "Linka C" Muzeum
+                       /add-head "Linka B" "Other station" 2
+                       /connect "Linka B" "Other station" "Linka A" "Nemocnice Motol"
+                       /route "Linka A" "Nemocnice Motol" "Linka C" Haje
+                       /route "Linka B" "Other station" "Linka C" Vysehrad
+                       /route "Linka C" Letnany "Linka A" "Test station"
+                       /exit
+                       """;
+        Main.readFile("test/test_files/prague_w_time.json", new BufferedReader(new StringReader(commands)));
+        var patched = systemOut.getLinesNormalized();
+        systemOut.clear();
+
+        System.setProperty(ChangeLog.THRESHOLD_PROPERTY, "0");
+        try {
+            Main.readFile("test/test_files/prague_w_time.json", new BufferedReader(new StringReader(commands)));
+            assertEquals(patched, systemOut.getLinesNormalized());
+        } finally {
+            System.clearProperty(ChangeLog.THRESHOLD_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testServerAnswersClientsInParallel() throws Exception {
+        var query = """
+                    /route "Linka C" Vysehrad "Linka B" "Namesti Republiky"
+                    /fastest-route "Linka C" Vysehrad "Linka B" "Namesti Republiky"
+                    /output "Linka A"
+                    /exit
+                    """;
+        var change = """
+                     /remove "Linka C" Muzeum
+                     /fastest-route "Linka C" Vysehrad "Linka B" "Namesti Republiky"
+                     /exit
+                     """;
+        // the server ends the output of every command with an empty line
+        var expected = new StringBuilder();
+        for (var command : query.lines().toList()) {
+            Main.readFile("test/test_files/prague_w_time.json", new BufferedReader(new StringReader(command)));
+            expected.append(systemOut.getText()).append(System.lineSeparator());
+            systemOut.clear();
+        }
+        Main.readFile("test/test_files/prague_w_time.json", new BufferedReader(new StringReader(change)));
+        var changed = System.lineSeparator() + systemOut.getText() + System.lineSeparator() + System.lineSeparator();
+
+        var lines   = FileOperations.readJSONFile("test/test_files/prague_w_time.json");
+        var clients = Executors.newFixedThreadPool(8);
+        try (var server = new QueryServer(lines, 0)) {
+            clients.execute(() -> {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            var answers = new ArrayList<Future<String>>();
+            for (int i = 0; i < 16; i++) {
+                answers.add(clients.submit(() -> askServer(server.getPort(), query)));
+            }
+            for (var answer : answers) {
+                assertEquals(expected.toString(), answer.get());
+            }
+            assertEquals(changed, askServer(server.getPort(), change));
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSnapshotIsUnchangedByLaterCommands() {
+        var lines      = FileOperations.readJSONFile("test/test_files/prague_w_time.json");
+        var controller = new Controller(lines);
+        var before     = controller.publish();
+        var out        = new OutputSink();
+        before.getLine("Linka C").printStations(out);
+        var output = out.take();
+        var start  = before.getLine("Linka C").getStation("Vysehrad", out);
+        var end    = before.getLine("Linka C").getStation("Florenc", out);
+        var route  = before.getRouteFinder().find("/route", start, end);
+
+        controller.execute(List.of("/remove", "Linka C", "Muzeum"), out);
+        controller.execute(List.of("/append", "Linka C", "Test station", "3"), out);
+        var after = controller.publish();
+
+        assertNotSame(before, after);
+        before.getLine("Linka C").printStations(out);
+        assertEquals(output, out.take());
+        assertEquals(route, before.getRouteFinder().find("/route", start, end));
+        after.getLine("Linka C").printStations(out);
+        assertTrue(out.take().lines().noneMatch(line -> line.startsWith("Muzeum")));
+        assertSame(before.getLine("Linka A"), after.getLine("Linka A"));
+    }
+
+    @Test
+    public void testAnotherGraphLeavesSnapshotIdsAlone() {
+        var lines      = FileOperations.readJSONFile("test/test_files/prague_w_time.json");
+        var controller = new Controller(lines);
+        controller.execute(List.of("/append", "Linka A", "Test station", "3"));
+        var network = controller.publish();
+        var graph   = network.getGraph();
+        var before  = new ArrayList<Route>();
+        for (int start = 0; start < graph.size(); start++) {
+            before.add(network.getRouteFinder().shortestRoute(graph.getStation(start), graph.getStation(0)));
+        }
+
+        // numbers the same stations in another order, and a second controller numbers them again
+        var reversed = new ArrayList<>(lines.values());
+        Collections.reverse(reversed);
+        var other = new MetroGraph(reversed);
+        new Controller(lines).getRouteFinder();
+
+        assertNotEquals(graph.id(graph.getStation(0)), other.id(graph.getStation(0)));
+        for (int start = 0; start < graph.size(); start++) {
+            assertEquals(before.get(start),
+                         network.getRouteFinder().shortestRoute(graph.getStation(start), graph.getStation(0)));
+            assertEquals(start, graph.id(graph.getStation(start)));
+        }
+    }
+
+    @Test
+    public void testRouteCacheBelongsToItsSnapshot() throws Exception {
+        var controller = new Controller(FileOperations.readJSONFile("test/test_files/prague_w_time.json"));
+        var before     = controller.publish();
+        var start      = before.getLine("Linka C").getStation("Vysehrad", new OutputSink());
+        var end        = before.getLine("Linka C").getStation("Florenc", new OutputSink());
+
+        // queries on other threads share the snapshot's cache
+        var workers = Executors.newFixedThreadPool(4);
+        try {
+            var found = new ArrayList<Future<Route>>();
+            for (int query = 0; query < 16; query++) {
+                found.add(workers.submit(() -> before.findRoute("/fastest-route", start, end)));
+            }
+            var route = before.findRoute("/fastest-route", start, end);
+            for (var future : found) {
+                assertSame(route, future.get());
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        var route = before.findRoute("/route", start, end);
+        controller.execute(List.of("/remove", "Linka C", "Muzeum"));
+        var after = controller.publish();
+        assertSame(route, before.findRoute("/route", start, end));
+        assertNotEquals(route, after.findRoute("/route", start, end));
+        assertEquals(after.findRoute("/route", start, end), controller.getRoute(start, end));
+    }
+
+    @Test
+    public void testStationLinksSpillOverFromFields() {
+        var symbols = new Symbols();
+        var station = new Station(symbols, "Links", "Test line");
+        var a       = new Station(symbols, "A", "Test line");
+        var b       = new Station(symbols, "B", "Test line");
+        var c       = new Station(symbols, "C", "Other line");
+
+        // nothing linked yet: empty lists, never null
+        assertEquals(List.of(), station.getPrev());
+        assertEquals(List.of(), station.getNext());
+        assertEquals(List.of(), station.getTransfers());
+        assertEquals(0, station.getNextCount());
+        assertFalse(station.hasTransfers());
+        assertFalse(station.hasNextStop(a));
+        assertFalse(station.hasNextStop(null));
+
+        station.setNext(a);
+        assertEquals(List.of(a), station.getNext());
+        assertTrue(station.hasNextStop(a));
+        assertFalse(station.hasNextStop(b));
+
+        // a branch spills over into an array, and a single station moves back into the field
+        station.setNext(List.of(a, b));
+        assertEquals(List.of(a, b), station.getNext());
+        assertEquals(2, station.getNextCount());
+        assertSame(b, station.getNext(1));
+        assertTrue(station.hasNextStop(b));
+        station.setNext(List.of(b));
+        assertEquals(List.of(b), station.getNext());
+        assertFalse(station.hasNextStop(a));
+        station.setNext((Station) null);
+        assertEquals(List.of(), station.getNext());
+        station.setNext(List.of());
+        assertEquals(List.of(), station.getNext());
+
+        // a null entry is kept in the list but never becomes a neighbor
+        station.setPrev(Arrays.asList(a, null));
+        assertEquals(Arrays.asList(a, null), station.getPrev());
+        station.setPrev(Arrays.asList((Station) null));
+        assertEquals(1, station.getPrevCount());
+        assertNull(station.getPrev(0));
+        station.setNext(Arrays.asList(null, b));
+        assertEquals(Arrays.asList(null, b), station.getNext());
+        assertTrue(station.hasNextStop(b));
+
+        station.setTransfers(c);
+        assertEquals(List.of(c), station.getTransfers());
+        station.setTransfers(a);
+        assertEquals(List.of(c, a), station.getTransfers());
+        assertEquals(List.of(c, a, b), station.getNeighbors());
+        assertThrows(UnsupportedOperationException.class, () -> station.getTransfers().add(b));
+        assertThrows(UnsupportedOperationException.class, () -> station.getNext().set(0, a));
+    }
+
+    @Test
+    public void testSymbolsInternEachNameOnce() throws Exception {
+        var symbols = new Symbols();
+        assertEquals(-1, symbols.lookup("never interned"));
+
+        List<String> names = new ArrayList<>();
+        for (int index = 0; index < 2_000; index++) {
+            names.add("symbol test " + index);
+        }
+        var threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<int[]>> interned = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                interned.add(threads.submit(() -> names.stream().mapToInt(symbols::intern).toArray()));
+            }
+            int[] ids = interned.get(0).get();
+            for (var other : interned) {
+                assertArrayEquals(ids, other.get());
+            }
+            assertEquals(names.size(), Arrays.stream(ids).distinct().count());
+            for (int index = 0; index < names.size(); index++) {
+                assertEquals(ids[index], symbols.lookup(names.get(index)));
+                assertEquals(names.get(index), symbols.name(ids[index]));
+                assertEquals(ids[index], symbols.intern(new String(names.get(index))));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(-1, symbols.lookup("never interned"));
+        assertEquals(-1, new Symbols().lookup(names.get(0)));
+    }
+
+    @Test
+    public void testEachNetworkHasItsOwnSymbols() throws IOException {
+        var first  = FileOperations.readJSONFile("test/test_files/prague_w_time.json");
+        var second = FileOperations.readJSONFile("test/test_files/prague_w_time.json");
+        var line   = first.get("Linka A");
+        var other  = second.get("Linka A");
+
+        assertNotSame(line.getSymbols(), other.getSymbols());
+        first.values().forEach(each -> assertSame(line.getSymbols(), each.getSymbols()));
+        assertNotNull(other.getStation("Dejvicka"));
+
+        // names interned for one network are never seen by the other
+        line.append("Only in the first network", 1);
+        assertNotNull(line.getStation("Only in the first network"));
+        assertEquals(-1, other.getSymbols().lookup("Only in the first network"));
+    }
+
+    @Test
+    public void testSymbolMapKeepsInsertionOrderThroughRemovesAndGrowth() {
+        var map = new SymbolMap<String>();
+        assertNull(map.get(-1));
+        assertNull(map.get(new Symbols().lookup("never interned")));
+        assertNull(map.remove(-1));
+
+        List<String> expected = new ArrayList<>();
+        for (int key = 0; key < 100; key++) {
+            map.put(key, "value " + key);
+            expected.add("value " + key);
+            if (key % 3 == 0) {
+                assertEquals("value " + key / 2, map.remove(key / 2));
+                expected.remove("value " + key / 2);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, new ArrayList<>(map.values()));
+
+        // a removed key leaves a tombstone that lookups probe past, and comes back at the end
+        assertNull(map.get(0));
+        assertNull(map.remove(0));
+        assertEquals("value 99", map.get(99));
+        map.put(0, "value 0 again");
+        map.put(99, "value 99 again");
+        expected.add("value 0 again");
+        expected.set(expected.indexOf("value 99"), "value 99 again");
+        assertEquals(expected, new ArrayList<>(map.values()));
+
+        var copy = new SymbolMap<>(map);
+        copy.remove(99);
+        assertEquals("value 99 again", map.get(99));
+        assertEquals(expected.size() - 1, copy.size());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        var histogram = new Histogram();
+        for (int value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000, histogram.getMax());
+        assertEquals(50_000.5, histogram.getMean());
+        for (int percentile : new int[]{50, 90, 99}) {
+            long expected = percentile * 1000L;
+            long actual   = histogram.getPercentile(percentile);
+            assertTrue(actual >= expected && actual <= expected * 1.0625, percentile + "th percentile was " + actual);
+        }
+
+        Main.readFile("test/test_files/prague_w_time.json", new BufferedReader(new StringReader("/stats\n/exit\n")));
+        assertEquals("Metrics are off, run with -Dhypermetro.metrics=true to collect them.",
+                     systemOut.getText().strip());
+    }
+
+    @Test
+    public void testTravelTimeAlongLine() {
+        var lines      = FileOperations.readJSONFile("test/test_files/prague_w_time.json");
+        var controller = new Controller(lines);
+        var out        = new OutputSink();
+        var line       = lines.get("Linka C");
+        line.getOrder();
+        controller.execute(List.of("/add-head", "Linka C", "First", "4"), out);
+        controller.execute(List.of("/remove", "Linka C", "Muzeum"), out);
+        controller.execute(List.of("/append", "Linka C", "Last", "2"), out);
+
+        var stations = line.getOrder();
+        for (int from = 0; from < stations.length; from++) {
+            int time = 0;
+            for (int to = from; to < stations.length; to++) {
+                assertEquals(time, line.travelTime(stations[from], stations[to]));
+                assertEquals(time, line.travelTime(stations[to], stations[from]));
+                time += stations[to].getTime();
+            }
+        }
+
+        controller.execute(List.of("/time", "Linka C", "First", "Hlavni nadrazi"), out);
+        assertEquals("Total trip time: " + line.travelTime(stations[0], line.getStation("Hlavni nadrazi"))
+                     + " minutes.", out.take().strip());
+    }
+
+    @Test
+    public void testContractionHierarchyFindsFastestRoutes() {
+        var graph     = new MetroGraph(FileOperations.readJSONFile("test/test_files/prague_w_time.json").values());
+        var dijkstra  = new RouteFinder(graph);
+        var hierarchy = new RouteFinder(graph, null, null, new ContractionHierarchy(graph));
+        for (int from = 0; from < graph.size(); from++) {
+            for (int to = 0; to < graph.size(); to++) {
+                // the same route where several are equally fast, not just as fast a one
+                assertEquals(dijkstra.fastestRoute(graph.getStation(from), graph.getStation(to)),
+                             hierarchy.fastestRoute(graph.getStation(from), graph.getStation(to)));
+            }
+        }
+    }
+
+    @Test
+    public void testContractionHierarchyIsLeftOutWithoutTimes() {
+        System.setProperty(ContractionHierarchy.ENABLED_PROPERTY, "true");
+        try {
+            var timed   = new MetroGraph(FileOperations.readJSONFile("test/test_files/prague_w_time.json").values());
+            var untimed = new MetroGraph(FileOperations.readJSONFile("test/test_files/prague_subway.json").values());
+            assertNotNull(ContractionHierarchy.build(timed));
+            assertNull(ContractionHierarchy.build(untimed));
+        } finally {
+            System.clearProperty(ContractionHierarchy.ENABLED_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testExportedContractionHierarchyIsReadBack(@TempDir Path tempDir) {
+        var snapshot = tempDir.resolve("prague.hmet").toString();
+        var lines    = FileOperations.readJSONFile("test/test_files/prague_w_time.json");
+        new Controller(lines).execute(List.of("/export", snapshot));
+        assertNull(SnapshotFile.load(snapshot).hierarchy());
+
+        System.setProperty(ContractionHierarchy.ENABLED_PROPERTY, "true");
+        try {
+            var controller = new Controller(lines);
+            controller.execute(List.of("/export", snapshot));
+            var built = controller.getRouteFinder().getHierarchy();
+
+            var contents = SnapshotFile.load(snapshot);
+            var graph    = new MetroGraph(contents.lines().values());
+            var loaded   = contents.hierarchy().bind(graph);
+            assertNotNull(loaded);
+            assertEquals(built.getShortcutCount(), loaded.getShortcutCount());
+            var dijkstra  = new RouteFinder(graph);
+            var hierarchy = new RouteFinder(graph, null, null, loaded);
+            for (int from = 0; from < graph.size(); from++) {
+                for (int to = 0; to < graph.size(); to++) {
+                    assertEquals(dijkstra.fastestRoute(graph.getStation(from), graph.getStation(to)),
+                                 hierarchy.fastestRoute(graph.getStation(from), graph.getStation(to)));
+                }
+            }
+
+            // the stations of another network don't match it, so that one is contracted instead
+            var other = new MetroGraph(FileOperations.readJSONFile("test/test_files/prague_w_time.json").values());
+            assertNull(contents.hierarchy().bind(other));
+        } finally {
+            System.clearProperty(ContractionHierarchy.ENABLED_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testParetoRoutesEndWithTheFastestRoute() {
+        var controller = new Controller(FileOperations.readJSONFile("test/test_files/prague_w_time.json"));
+        assertParetoRoutesEndWithTheFastestRoute(controller.publish());
+
+        // a removed station still linked as a transfer is a line of its own
+        controller.execute(List.of("/connect", "Linka A", "Mustek", "Linka C", "Muzeum"));
+        controller.execute(List.of("/remove", "Linka C", "Muzeum"));
+        controller.execute(List.of("/add-head", "Linka B", "Other station", "2"));
+        assertParetoRoutesEndWithTheFastestRoute(controller.publish());
+    }
+
+    private static void assertParetoRoutesEndWithTheFastestRoute(final NetworkSnapshot network) {
+        var graph    = network.getGraph();
+        var dijkstra = new RouteFinder(graph);
+        var pareto   = network.getParetoRouter();
+        for (int from = 0; from < graph.size(); from++) {
+            for (int to = 0; to < graph.size(); to++) {
+                var fastest  = dijkstra.fastestRoute(graph.getStation(from), graph.getStation(to));
+                var journeys = pareto.find(graph.getStation(from), graph.getStation(to));
+                assertEquals(fastest == null, journeys.isEmpty());
+                if (fastest != null) {
+                    assertEquals(fastest.time(), journeys.get(journeys.size() - 1).route().time());
+                }
+                for (int index = 1; index < journeys.size(); index++) {
+                    assertTrue(journeys.get(index).transfers() > journeys.get(index - 1).transfers());
+                    assertTrue(journeys.get(index).route().time() < journeys.get(index - 1).route().time());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAlternativeRoutesStartWithTheFastestRoute() {
+        var graph        = new MetroGraph(FileOperations.readJSONFile("test/test_files/prague_w_time.json").values());
+        var dijkstra     = new RouteFinder(graph);
+        var alternatives = new AlternativeRouter(graph);
+        for (int from = 0; from < graph.size(); from++) {
+            for (int to = 0; to < graph.size(); to++) {
+                var fastest = dijkstra.fastestRoute(graph.getStation(from), graph.getStation(to));
+                var routes  = alternatives.find(graph.getStation(from), graph.getStation(to), 5);
+                assertEquals(fastest.time(), routes.get(0).time());
+                for (int index = 1; index < routes.size(); index++) {
+                    assertTrue(routes.get(index).time() >= routes.get(index - 1).time());
+                }
+                for (var route : routes) {
+                    assertEquals(route.stations().size(), new HashSet<>(route.stations()).size());
+                }
+                assertEquals(routes.size(), new HashSet<>(routes.stream().map(Route::stations).toList()).size());
+            }
+        }
+    }
+
+    private static String askServer(final int port, final String commands) throws IOException {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.getOutputStream().write(commands.getBytes(StandardCharsets.UTF_8));
+            socket.shutdownOutput();
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
     @ParameterizedTest
     @MethodSource("testStage6_LondonSubway")
     void testStage6_LondonSubway_FindRoute(final String command, final String expected) {